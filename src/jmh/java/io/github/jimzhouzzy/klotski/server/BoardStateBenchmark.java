@@ -0,0 +1,73 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import org.java_websocket.WebSocket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A logged-in player sending boards to {@link GameWebSocketServer#onMessage(WebSocket, String)},
+ * either as full {@code boardState:} messages or as {@code move:} commands, with a number of
+ * spectators subscribed to the player. Each message moves one piece back and forth, so every
+ * message is parsed, validated against the player's board and published.
+ */
+@State(Scope.Benchmark)
+// Every mock connection shares one address and the player floods moves; measure without rate limits
+@Fork(value = 1, jvmArgsAppend = {"-Dklotski.limit.ws.address=0", "-Dklotski.limit.ws.board=0"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BoardStateBenchmark {
+    private static final String USERNAME = "jim";
+
+    @Param({"0", "100"})
+    public int spectators;
+
+    private GameWebSocketServer server;
+    private WebSocket player;
+    private String[] boardStates;
+    private String[] moves;
+    private int next;
+
+    @Setup
+    public void setup() {
+        server = new GameWebSocketServer(0);
+        LoginServer.userDatabase.put(USERNAME, "password");
+        player = MockConnections.newConnection();
+        server.userConnections.add(player);
+        server.onMessage(player, "login:" + USERNAME);
+        for (int i = 0; i < spectators; i++) {
+            WebSocket spectator = MockConnections.newConnection();
+            server.userConnections.add(spectator);
+            server.onMessage(spectator, "subscribe:" + USERNAME);
+        }
+
+        long start = Board.parse(Solver.OPENINGS.get("Heng Dao Li Ma"));
+        long[] successors = new long[64];
+        Board.successors(start, successors);
+        long moved = successors[0];
+        boardStates = new String[] {boardState(moved), boardState(start)};
+        moves = new String[] {
+                "move:" + GameWebSocketServer.formatMove(Board.findMove(start, moved)),
+                "move:" + GameWebSocketServer.formatMove(Board.findMove(moved, start))};
+        server.onMessage(player, boardState(start));
+    }
+
+    private static String boardState(long board) {
+        return USERNAME + ":\nboardState:\n" + Board.toText(board);
+    }
+
+    @Benchmark
+    public void boardState() {
+        server.onMessage(player, boardStates[next++ & 1]);
+    }
+
+    @Benchmark
+    public void move() {
+        server.onMessage(player, moves[next++ & 1]);
+    }
+}
@@ -0,0 +1,58 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import org.java_websocket.WebSocket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fan-out of one board update to N mock connections: {@code broadcast} sends the text to every
+ * socket as {@link GameWebSocketServer#broadcastGameState} does, {@code publish} goes through the
+ * subscription index and the per-socket outboxes with every socket subscribed to the player.
+ */
+@State(Scope.Benchmark)
+// Every mock connection shares one address and the player floods moves; measure without rate limits
+@Fork(value = 1, jvmArgsAppend = {"-Dklotski.limit.ws.address=0"})
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class BroadcastBenchmark {
+    private static final String GAME_STATE = "Board state updated:\njim:\nG C C G\nG C C G\nG Y Y G\nG S S G\nS . . S\n";
+
+    @Param({"10", "100", "1000", "10000"})
+    public int connections;
+
+    private GameWebSocketServer server;
+    private BoardUpdate[] updates;
+    private int next;
+
+    @Setup
+    public void setup() {
+        server = new GameWebSocketServer(0);
+        for (int i = 0; i < connections; i++) {
+            WebSocket conn = MockConnections.newConnection();
+            server.userConnections.add(conn);
+            server.onMessage(conn, "subscribe:jim");
+        }
+        long start = Board.parse(Solver.OPENINGS.get("Heng Dao Li Ma"));
+        long[] successors = new long[64];
+        Board.successors(start, successors);
+        updates = new BoardUpdate[] {
+                new BoardUpdate("jim", "jim:", null, start),
+                new BoardUpdate("jim", "jim:", null, successors[0])};
+    }
+
+    @Benchmark
+    public void broadcast() {
+        server.broadcastGameState(GAME_STATE);
+    }
+
+    @Benchmark
+    public int publish() {
+        return server.publishGameState(updates[next++ & 1]);
+    }
+}
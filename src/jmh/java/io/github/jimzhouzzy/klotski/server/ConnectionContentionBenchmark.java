@@ -0,0 +1,91 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import org.java_websocket.WebSocket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Opens and closes connections while other threads run broadcast storms.
+ * The "registry" group uses {@link ConnectionRegistry}; the "synchronizedMap" group
+ * reproduces the previous synchronized map so the two can be compared directly.
+ */
+@State(Scope.Group)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ConnectionContentionBenchmark {
+    private static final String GAME_STATE = "Board state updated:\njim:\nG C C G\nG C C G\nG Y Y G\nG S S G\nS . . S\n";
+
+    @Param({"100", "1000"})
+    public int connections;
+
+    private GameWebSocketServer server;
+    private Map<WebSocket, String> legacyConnections;
+    private WebSocket[] churnPool;
+
+    @Setup
+    public void setup() {
+        server = new GameWebSocketServer(0);
+        legacyConnections = Collections.synchronizedMap(new HashMap<>());
+        for (int i = 0; i < connections; i++) {
+            WebSocket conn = MockConnections.newConnection();
+            server.userConnections.add(conn);
+            legacyConnections.put(conn, "user" + i);
+        }
+        churnPool = new WebSocket[64];
+        for (int i = 0; i < churnPool.length; i++) {
+            churnPool[i] = MockConnections.newConnection();
+        }
+    }
+
+    @Benchmark
+    @Group("registry")
+    @GroupThreads(3)
+    public void registryBroadcast() {
+        server.broadcastGameState(GAME_STATE);
+    }
+
+    @Benchmark
+    @Group("registry")
+    @GroupThreads(1)
+    public void registryOpenClose() {
+        WebSocket conn = churnPool[ThreadLocalRandom.current().nextInt(churnPool.length)];
+        server.userConnections.add(conn);
+        server.userConnections.get(conn).setUsername("churn");
+        server.userConnections.remove(conn);
+    }
+
+    @Benchmark
+    @Group("synchronizedMap")
+    @GroupThreads(3)
+    public void legacyBroadcast() {
+        synchronized (legacyConnections) {
+            for (WebSocket conn : legacyConnections.keySet()) {
+                conn.send(GAME_STATE);
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("synchronizedMap")
+    @GroupThreads(1)
+    public void legacyOpenClose() {
+        WebSocket conn = churnPool[ThreadLocalRandom.current().nextInt(churnPool.length)];
+        legacyConnections.put(conn, null);
+        legacyConnections.put(conn, "churn");
+        legacyConnections.remove(conn);
+    }
+}
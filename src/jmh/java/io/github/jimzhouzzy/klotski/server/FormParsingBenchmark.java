@@ -0,0 +1,38 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+
+/**
+ * Parsing of the login form body and of the {@code /gameSave} query string.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FormParsingBenchmark {
+    public String loginForm = "username=jim&password=correct-horse-battery";
+    public String tokenForm = "token=6f1c0b2e-8d4a-4f7e-9b1a-2c3d4e5f6a7b";
+    public String query = "username=jim&slot=2025-05-07T12:00:00Z";
+
+    @Benchmark
+    public Map<String, String> loginForm() {
+        return LoginServer.parseForm(loginForm);
+    }
+
+    @Benchmark
+    public Map<String, String> tokenForm() {
+        return LoginServer.parseForm(tokenForm);
+    }
+
+    @Benchmark
+    public Map<String, String> saveQuery() {
+        return GameSaveHandler.parseQuery(query);
+    }
+}
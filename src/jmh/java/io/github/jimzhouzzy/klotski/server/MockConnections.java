@@ -0,0 +1,61 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.handshake.ClientHandshake;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Proxy-based stand-ins for Java-WebSocket objects used by the benchmarks.
+ * Sends are counted but never touch a socket.
+ */
+final class MockConnections {
+    static final LongAdder sent = new LongAdder();
+
+    private MockConnections() {
+    }
+
+    static WebSocket newConnection() {
+        return (WebSocket) Proxy.newProxyInstance(WebSocket.class.getClassLoader(), new Class<?>[] {WebSocket.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "send":
+                            sent.increment();
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "MockConnection@" + Integer.toHexString(System.identityHashCode(proxy));
+                        case "isOpen":
+                            return true;
+                        case "hasBufferedData":
+                        case "isClosed":
+                        case "isClosing":
+                            return false;
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    static ClientHandshake newHandshake(String resourceDescriptor) {
+        return (ClientHandshake) Proxy.newProxyInstance(ClientHandshake.class.getClassLoader(),
+                new Class<?>[] {ClientHandshake.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getResourceDescriptor":
+                            return resourceDescriptor;
+                        case "hasFieldValue":
+                            return false;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
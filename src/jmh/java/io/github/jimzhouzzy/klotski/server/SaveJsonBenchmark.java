@@ -0,0 +1,90 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gson encoding of a user's saves the way {@code handleGetSaves} streams them, and decoding of
+ * that response the way a client reads it.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SaveJsonBenchmark {
+    private static final Gson gson = new Gson();
+
+    @Param({"1", "10", "50"})
+    public int saves;
+
+    private List<GameSave> list;
+    private byte[] response;
+
+    static class SavesResponse {
+        int code;
+        List<GameSave> saves;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        list = new ArrayList<>();
+        for (int i = 0; i < saves; i++) {
+            GameSave save = new GameSave();
+            save.setUsername("jim");
+            save.setDate("2025-05-07T12:" + String.format("%02d", i % 60) + ":00Z");
+            save.setAutoSave(i == 0);
+            save.setSaveData(saveData(i));
+            list.add(save);
+        }
+        response = encode();
+    }
+
+    // Roughly what the client uploads: the board, the moves so far and the elapsed time
+    private static String saveData(int seed) {
+        StringBuilder moves = new StringBuilder();
+        for (int i = 0; i < 40 + seed; i++) {
+            moves.append(i > 0 ? "," : "").append('"').append(i % 20).append("URDL".charAt(i & 3)).append('"');
+        }
+        return "{\"board\":\"GCCGGCCGGYYGGSSGS..S\",\"moves\":[" + moves + "],\"elapsed\":" + (seed * 1000 + 42) + "}";
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        try (JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8)))) {
+            writer.beginObject();
+            writer.name("code").value(200);
+            writer.name("saves").beginArray();
+            for (GameSave save : list) {
+                gson.toJson(save, GameSave.class, writer);
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        return bytes.toByteArray();
+    }
+
+    @Benchmark
+    public SavesResponse decode() {
+        return gson.fromJson(new InputStreamReader(new ByteArrayInputStream(response), StandardCharsets.UTF_8),
+                SavesResponse.class);
+    }
+}
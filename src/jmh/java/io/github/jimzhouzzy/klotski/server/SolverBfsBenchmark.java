@@ -0,0 +1,68 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Builds the full solver table from the standard openings on fork-join pools of different sizes.
+ * The {@code states} counter reports explored states per second next to the build time.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SolverBfsBenchmark {
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private ForkJoinPool pool;
+    private long[] starts;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long states;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            states = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        pool = new ForkJoinPool(threads);
+        starts = Solver.openings();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public long[] explore(Counters counters) {
+        long[] states = StateSpaceSearch.explore(starts, pool);
+        counters.states += states.length;
+        return states;
+    }
+
+    @Benchmark
+    public DistanceTable buildTable(Counters counters) {
+        long[] states = StateSpaceSearch.explore(starts, pool);
+        DistanceTable table = StateSpaceSearch.solve(states, pool);
+        counters.states += states.length;
+        return table;
+    }
+}
@@ -0,0 +1,74 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+
+/**
+ * {@link WebServer} serving the page from its asset cache, called directly with an in-memory
+ * exchange so only the handler is measured. {@code notModified} is a revalidation that ends
+ * in a 304. Runs from the project directory so the {@code web} directory is found.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class WebServerBenchmark {
+    @Param({"identity", "gzip"})
+    public String acceptEncoding;
+
+    private WebServer webServer;
+    private String etag;
+
+    @Setup
+    public void setup() throws IOException {
+        webServer = new WebServer(0);
+        MockExchange exchange = get("/index.html");
+        webServer.handleRequest(exchange);
+        if (exchange.getResponseCode() != 200) {
+            throw new IllegalStateException("GET /index.html returned " + exchange.getResponseCode());
+        }
+        etag = exchange.getResponseHeaders().getFirst("ETag");
+    }
+
+    @TearDown
+    public void tearDown() {
+        webServer.close();
+    }
+
+    private MockExchange get(String path) {
+        MockExchange exchange = new MockExchange("GET", path);
+        exchange.getRequestHeaders().set("Accept-Encoding", acceptEncoding);
+        return exchange;
+    }
+
+    @Benchmark
+    public long page() throws IOException {
+        MockExchange exchange = get("/index.html");
+        webServer.handleRequest(exchange);
+        return exchange.getBytesWritten();
+    }
+
+    @Benchmark
+    public int notModified() throws IOException {
+        MockExchange exchange = get("/index.html");
+        exchange.getRequestHeaders().set("If-None-Match", etag);
+        webServer.handleRequest(exchange);
+        return exchange.getResponseCode();
+    }
+
+    @Benchmark
+    public int spectatorPage() throws IOException {
+        MockExchange exchange = get("/jim");
+        webServer.handleRequest(exchange);
+        return exchange.getResponseCode();
+    }
+}
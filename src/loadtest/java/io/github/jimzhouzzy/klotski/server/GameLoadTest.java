@@ -0,0 +1,370 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import com.google.gson.Gson;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End-to-end load test: synthetic players sign up, log in, open a WebSocket each and move pieces at a
+ * fixed rate while spectators watch every player, and every player uploads and fetches a save now and then.
+ * <p>
+ * Each player walks randomly from the first opening, one legal move per {@code boardState:} message.
+ * The send time travels in the message header, which the server passes on to spectators unchanged,
+ * so the delivery latency from move to spectator is measured without clock skew. Stats are reset
+ * after the warm-up. Every synthetic client comes from one address, so start the server with the
+ * per-address {@link RateLimiter} limits turned off, and the per-user board limit too if {@code --rate}
+ * exceeds it, e.g.
+ * <pre>
+ * -Dklotski.limit.signup=0 -Dklotski.limit.login=0 -Dklotski.limit.gameSave=0 -Dklotski.limit.ws.address=0
+ * ./gradlew gameLoadTest --args="--players 200 --spectators 2 --rate 2 --duration 60"
+ * </pre>
+ * With several nodes on a {@link Backplane}, {@code --spectatorWs ws://localhost:8102} puts the
+ * spectators on another node than the players, so the latency includes the hop between nodes.
+ */
+public class GameLoadTest {
+    private static final Gson gson = new Gson();
+    private static final String PASSWORD = "loadtest-password";
+    private static final String UPDATE_PREFIX = "Board state updated:\n";
+    private static final String SENT_AT = ":t=";
+
+    private static volatile Stats stats = new Stats();
+
+    /**
+     * Counters and latency histograms of one phase of the run.
+     */
+    private static class Stats {
+        final long startNanos = System.nanoTime();
+        final LongAdder boardsSent = new LongAdder();
+        final LongAdder sendsSkipped = new LongAdder();
+        final LongAdder updatesReceived = new LongAdder();
+        final Metrics.Histogram delivery = new Metrics.Histogram("", 1);
+        final Map<String, Metrics.Histogram> requests = new ConcurrentHashMap<>();
+        final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+        void request(String operation, long startNanos) {
+            requests.computeIfAbsent(operation, o -> new Metrics.Histogram("", 1)).recordSince(startNanos);
+        }
+
+        void error(String kind) {
+            errors.computeIfAbsent(kind, k -> new LongAdder()).increment();
+        }
+
+        void print(String phase) {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            System.out.printf("%s (%.1fs)%n", phase, seconds);
+            if (boardsSent.sum() > 0 || updatesReceived.sum() > 0) {
+                System.out.printf("  boardState sent/sec: %.1f (skipped while a send was pending: %d)%n",
+                        boardsSent.sum() / seconds, sendsSkipped.sum());
+                System.out.printf("  spectator updates/sec: %.1f%n", updatesReceived.sum() / seconds);
+                printLatency("  move -> spectator ms:", delivery);
+            }
+            for (Map.Entry<String, Metrics.Histogram> request : new TreeMap<>(requests).entrySet()) {
+                System.out.printf("  %-10s %6d ok, %.1f/sec,", request.getKey(), request.getValue().getCount(),
+                        request.getValue().getCount() / seconds);
+                printLatency("", request.getValue());
+            }
+            long total = 0;
+            for (LongAdder count : errors.values()) {
+                total += count.sum();
+            }
+            System.out.println("  errors: " + total);
+            for (Map.Entry<String, LongAdder> error : new TreeMap<>(errors).entrySet()) {
+                System.out.println("    " + error.getKey() + ": " + error.getValue().sum());
+            }
+        }
+
+        private static void printLatency(String label, Metrics.Histogram latency) {
+            System.out.printf("%s p50=%.2f p90=%.2f p99=%.2f max=%.2f%n", label,
+                    latency.quantile(0.50) / 1e6, latency.quantile(0.90) / 1e6,
+                    latency.quantile(0.99) / 1e6, latency.quantile(1.0) / 1e6);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = HttpLoadTest.parseArgs(args);
+        String http = options.getOrDefault("http", "http://localhost:8001");
+        String ws = options.getOrDefault("ws", "ws://localhost:8002");
+        String spectatorWs = options.getOrDefault("spectatorWs", ws);
+        int players = Integer.parseInt(options.getOrDefault("players", "100"));
+        int spectators = Integer.parseInt(options.getOrDefault("spectators", "2"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "2"));
+        int saveSeconds = Integer.parseInt(options.getOrDefault("saveEvery", "30"));
+        int seconds = Integer.parseInt(options.getOrDefault("duration", "60"));
+        int warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "10"));
+        int connectConcurrency = Integer.parseInt(options.getOrDefault("connectConcurrency", "16"));
+        String prefix = options.getOrDefault("prefix", "load");
+
+        HttpClient client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(Executors.newFixedThreadPool(4))
+                .build();
+        System.out.println("Game load test: " + players + " players, " + spectators + " spectators each, "
+                + rate + " moves/sec per player, save every " + saveSeconds + "s, "
+                + warmupSeconds + "s warm-up, " + seconds + "s measured");
+
+        // Sign up, log in and connect everyone before the clock starts
+        List<Player> connected = new ArrayList<>();
+        ExecutorService setup = Executors.newFixedThreadPool(connectConcurrency);
+        List<Future<Player>> pending = new ArrayList<>();
+        for (int i = 0; i < players; i++) {
+            String username = String.format("%s%05d", prefix, i);
+            pending.add(setup.submit(() -> connect(client, http, ws, spectatorWs, username, spectators)));
+        }
+        for (Future<Player> player : pending) {
+            if (player.get() != null) {
+                connected.add(player.get());
+            }
+        }
+        setup.shutdown();
+        stats.print("Setup: " + connected.size() + " of " + players + " players connected");
+        if (connected.isEmpty()) {
+            System.exit(1);
+        }
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+        long periodNanos = (long) (1e9 / rate);
+        for (Player player : connected) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            scheduler.scheduleAtFixedRate(player::sendMove, random.nextLong(periodNanos), periodNanos,
+                    TimeUnit.NANOSECONDS);
+            if (saveSeconds > 0) {
+                long savePeriod = TimeUnit.SECONDS.toNanos(saveSeconds);
+                scheduler.scheduleAtFixedRate(() -> player.saveAndFetch(client, http),
+                        random.nextLong(savePeriod), savePeriod, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        stats = new Stats();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        Stats measured = stats;
+        scheduler.shutdownNow();
+        measured.print("Measured");
+        System.exit(0);
+    }
+
+    private static Player connect(HttpClient client, String http, String ws, String spectatorWs, String username,
+                                  int spectators) {
+        try {
+            String form = "username=" + username + "&password=" + PASSWORD;
+            String signup = post(client, "signup", URI.create(http + "/signup"), form);
+            if (signup == null || !(signup.equals("success") || signup.contains("already exists"))) {
+                stats.error("signup rejected: " + signup);
+                return null;
+            }
+            String login = post(client, "login", URI.create(http + "/login"), form);
+            if (login == null || !login.startsWith("success:")) {
+                stats.error("login rejected: " + login);
+                return null;
+            }
+
+            Player player = new Player(username);
+            long start = System.nanoTime();
+            player.socket = client.newWebSocketBuilder()
+                    .buildAsync(URI.create(ws), new Listener(player))
+                    .get(10, TimeUnit.SECONDS);
+            player.socket.sendText("login:" + username, true).get(10, TimeUnit.SECONDS);
+            if (!player.loggedIn.get(10, TimeUnit.SECONDS)) {
+                stats.error("ws login rejected");
+                return null;
+            }
+            stats.request("wsLogin", start);
+            // The opening board starts a new game for this player
+            player.sendMove();
+
+            for (int i = 0; i < spectators; i++) {
+                client.newWebSocketBuilder()
+                        .buildAsync(URI.create(spectatorWs + "/" + username), new Listener(null))
+                        .get(10, TimeUnit.SECONDS);
+            }
+            return player;
+        } catch (Exception e) {
+            stats.error("connect: " + e.getClass().getSimpleName());
+            return null;
+        }
+    }
+
+    /**
+     * Posts a form and returns the response body, or null on an error status or failure.
+     */
+    private static String post(HttpClient client, String operation, URI uri, String form) {
+        Stats current = stats;
+        long start = System.nanoTime();
+        try {
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(uri)
+                    .timeout(Duration.ofSeconds(30))
+                    .POST(HttpRequest.BodyPublishers.ofString(form))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                current.error(operation + " " + response.statusCode());
+                return null;
+            }
+            current.request(operation, start);
+            return response.body();
+        } catch (Exception e) {
+            current.error(operation + " " + e.getClass().getSimpleName());
+            return null;
+        }
+    }
+
+    private static class Player {
+        final String username;
+        final CompletableFuture<Boolean> loggedIn = new CompletableFuture<>();
+        final long[] successors = new long[64];
+        long board = Board.parse(Solver.OPENINGS.values().iterator().next()); // guarded by this
+        boolean started; // guarded by this
+        volatile WebSocket socket;
+        CompletableFuture<WebSocket> sending = CompletableFuture.completedFuture(null); // guarded by this
+
+        Player(String username) {
+            this.username = username;
+        }
+
+        /**
+         * Sends the next board of a random walk, unless the previous message is still being sent.
+         */
+        synchronized void sendMove() {
+            Stats current = stats;
+            if (!sending.isDone()) {
+                current.sendsSkipped.increment();
+                return;
+            }
+            if (started) {
+                int count = Board.successors(board, successors);
+                board = successors[ThreadLocalRandom.current().nextInt(count)];
+            }
+            started = true;
+            String message = username + SENT_AT + System.nanoTime() + "\nboardState:\n" + Board.toText(board);
+            sending = socket.sendText(message, true);
+            sending.whenComplete((ws, e) -> {
+                if (e != null) {
+                    current.error("ws send " + e.getClass().getSimpleName());
+                } else {
+                    current.boardsSent.increment();
+                }
+            });
+        }
+
+        void saveAndFetch(HttpClient client, String http) {
+            Stats current = stats;
+            GameSave save = new GameSave();
+            save.setUsername(username);
+            save.setDate(Instant.now().toString());
+            save.setAutoSave(true);
+            synchronized (this) {
+                save.setSaveData(gson.toJson(Map.of("board", SolverHandler.toLetters(board))));
+            }
+            long start = System.nanoTime();
+            client.sendAsync(HttpRequest.newBuilder(URI.create(http + "/gameSave/uploadSave"))
+                            .timeout(Duration.ofSeconds(30))
+                            .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(save)))
+                            .build(), HttpResponse.BodyHandlers.discarding())
+                    .thenCompose(response -> {
+                        if (response.statusCode() != 200) {
+                            current.error("uploadSave " + response.statusCode());
+                        } else {
+                            current.request("uploadSave", start);
+                        }
+                        long fetchStart = System.nanoTime();
+                        URI fetch = URI.create(http + "/gameSave/getSaves?username="
+                                + URLEncoder.encode(username, StandardCharsets.UTF_8));
+                        return client.sendAsync(HttpRequest.newBuilder(fetch).timeout(Duration.ofSeconds(30)).build(),
+                                        HttpResponse.BodyHandlers.discarding())
+                                .thenAccept(fetched -> {
+                                    if (fetched.statusCode() != 200) {
+                                        current.error("getSaves " + fetched.statusCode());
+                                    } else {
+                                        current.request("getSaves", fetchStart);
+                                    }
+                                });
+                    })
+                    .exceptionally(e -> {
+                        current.error("gameSave " + e.getClass().getSimpleName());
+                        return null;
+                    });
+        }
+    }
+
+    /**
+     * Receives the messages of a player's socket, or of a spectator's if the player is null.
+     */
+    private static class Listener implements WebSocket.Listener {
+        private final Player player;
+        private final StringBuilder partial = new StringBuilder();
+
+        Listener(Player player) {
+            this.player = player;
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            partial.append(data);
+            if (last) {
+                handle(partial.toString());
+                partial.setLength(0);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        private void handle(String message) {
+            if (message.startsWith("Error:")) {
+                stats.error("server: " + message);
+                if (player != null) {
+                    player.loggedIn.complete(false);
+                }
+            } else if (player != null) {
+                if (message.startsWith("Login successful")) {
+                    player.loggedIn.complete(true);
+                }
+            } else if (message.startsWith(UPDATE_PREFIX)) {
+                Stats current = stats;
+                current.updatesReceived.increment();
+                int headerEnd = message.indexOf('\n', UPDATE_PREFIX.length());
+                int sentAt = message.indexOf(SENT_AT, UPDATE_PREFIX.length());
+                if (sentAt > 0 && sentAt < headerEnd) {
+                    current.delivery.recordSince(Long.parseLong(message, sentAt + SENT_AT.length(), headerEnd, 10));
+                }
+            }
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            stats.error("ws closed " + statusCode);
+            if (player != null) {
+                player.loggedIn.complete(false);
+            }
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            stats.error("ws " + error.getClass().getSimpleName());
+            if (player != null) {
+                player.loggedIn.complete(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Closed-loop HTTP load test: N workers send requests back to back for a fixed time
+ * and the run reports requests/sec and latency percentiles.
+ * <p>
+ * Run it against a server started with each {@code -Dklotski.http.executor} mode
+ * ({@code dispatcher} reproduces the old single-thread behaviour) to compare them, with the login
+ * {@link RateLimiter} limits per address and per user turned off ({@code -Dklotski.limit.login=0
+ * -Dklotski.limit.loginUser=0}), e.g.
+ * <pre>
+ * ./gradlew httpLoadTest --args="--url http://localhost:8001/login --method POST --body username=jim&amp;password=123"
+ * </pre>
+ */
+public class HttpLoadTest {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseArgs(args);
+        URI uri = URI.create(options.getOrDefault("url", "http://localhost:8001/login"));
+        String method = options.getOrDefault("method", "POST");
+        String body = options.getOrDefault("body", "username=jim&password=123");
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "64"));
+        int seconds = Integer.parseInt(options.getOrDefault("duration", "20"));
+        int warmupSeconds = Integer.parseInt(options.getOrDefault("warmup", "5"));
+
+        HttpClient client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(5))
+                .executor(Executors.newFixedThreadPool(4))
+                .build();
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofSeconds(30))
+                .method(method, "GET".equals(method)
+                        ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body))
+                .build();
+
+        System.out.println("Load test: " + method + " " + uri + ", " + concurrency + " workers, "
+                + warmupSeconds + "s warm-up, " + seconds + "s measured");
+        run(client, request, concurrency, warmupSeconds, null);
+        Result result = new Result();
+        run(client, request, concurrency, seconds, result);
+        result.print(seconds);
+        System.exit(0);
+    }
+
+    private static void run(HttpClient client, HttpRequest request, int concurrency, int seconds, Result result)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        CountDownLatch done = new CountDownLatch(concurrency);
+        Worker[] all = new Worker[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            Worker worker = new Worker(client, request, deadline);
+            all[i] = worker;
+            workers.execute(() -> {
+                worker.run();
+                done.countDown();
+            });
+        }
+        done.await();
+        workers.shutdown();
+        if (result != null) {
+            for (Worker worker : all) {
+                result.add(worker);
+            }
+        }
+    }
+
+    private static class Worker implements Runnable {
+        private final HttpClient client;
+        private final HttpRequest request;
+        private final long deadline;
+        private long[] latencies = new long[4096];
+        private int count;
+        private int errors;
+        private int rejected;
+
+        Worker(HttpClient client, HttpRequest request, long deadline) {
+            this.client = client;
+            this.request = request;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < deadline) {
+                long start = System.nanoTime();
+                try {
+                    HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                    if (response.statusCode() == 503) {
+                        rejected++;
+                        continue;
+                    }
+                    if (response.statusCode() >= 400) {
+                        errors++;
+                        continue;
+                    }
+                } catch (Exception e) {
+                    errors++;
+                    continue;
+                }
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = System.nanoTime() - start;
+            }
+        }
+    }
+
+    private static class Result {
+        private long[] latencies = new long[0];
+        private long errors;
+        private long rejected;
+
+        void add(Worker worker) {
+            int offset = latencies.length;
+            latencies = Arrays.copyOf(latencies, offset + worker.count);
+            System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+            errors += worker.errors;
+            rejected += worker.rejected;
+        }
+
+        void print(int seconds) {
+            Arrays.sort(latencies);
+            System.out.printf("requests/sec: %.1f%n", latencies.length / (double) seconds);
+            System.out.printf("latency ms: p50=%.2f p90=%.2f p99=%.2f max=%.2f%n",
+                    percentile(0.50), percentile(0.90), percentile(0.99), percentile(1.0));
+            System.out.println("ok=" + latencies.length + " rejected(503)=" + rejected + " errors=" + errors);
+        }
+
+        double percentile(double p) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(latencies.length - 1, Math.ceil(p * latencies.length) - 1);
+            return latencies[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+
+    static Map<String, String> parseArgs(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].startsWith("--")) {
+                options.put(args[i].substring(2), args[i + 1]);
+            }
+        }
+        return options;
+    }
+}
@@ -0,0 +1,344 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The files of the web client, loaded once and kept in memory with everything a response needs:
+ * the bytes, the content type, a strong ETag and compressed variants.
+ * <p>
+ * Files come from the {@code web/} directory if there is one, otherwise straight from the
+ * {@code web/} entries of the running JAR. Text assets get a gzip variant computed at load time;
+ * a precompressed {@code <name>.br} or {@code <name>.gz} next to a file is used as its brotli or gzip
+ * variant (the JDK cannot produce brotli itself). Files larger than {@code klotski.web.cacheMaxBytes}
+ * are not cached and are served from disk.
+ * <p>
+ * With {@code -Dklotski.web.watch=true} the {@code web/} directory is watched and changed files are
+ * reloaded, for working on the client without restarting the server.
+ */
+public class AssetCache {
+    private static final Logger logger = LoggerFactory.getLogger(AssetCache.class);
+    public static final String WEB_DIRECTORY = "web";
+    public static final long CACHE_MAX_BYTES = Long.getLong("klotski.web.cacheMaxBytes", 1L << 20);
+    private static final boolean WATCH = Boolean.getBoolean("klotski.web.watch");
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=UTF-8");
+        CONTENT_TYPES.put("css", "text/css; charset=UTF-8");
+        CONTENT_TYPES.put("js", "text/javascript; charset=UTF-8");
+        CONTENT_TYPES.put("json", "application/json; charset=UTF-8");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("txt", "text/plain; charset=UTF-8");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("webp", "image/webp");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("mp3", "audio/mpeg");
+        CONTENT_TYPES.put("ogg", "audio/ogg");
+        CONTENT_TYPES.put("wav", "audio/wav");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+    }
+
+    private final Map<String, Asset> assets = new ConcurrentHashMap<>(); // by path, e.g. "/index.html"
+    private final Path directory; // null when serving from the JAR
+
+    /**
+     * A cached file. All fields are immutable; a changed file gets a new Asset.
+     */
+    public static class Asset {
+        private final String path;
+        private final String contentType;
+        private final String etag;
+        private final byte[] identity;
+        private final byte[] gzip; // null if not worth compressing
+        private final byte[] brotli; // null unless precompressed
+
+        Asset(String path, String contentType, String etag, byte[] identity, byte[] gzip, byte[] brotli) {
+            this.path = path;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.identity = identity;
+            this.gzip = gzip;
+            this.brotli = brotli;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Returns the strong ETag of one encoding, so every variant validates separately.
+         */
+        public String getEtag(String encoding) {
+            return encoding == null ? "\"" + etag + "\"" : "\"" + etag + "-" + encoding + "\"";
+        }
+
+        /**
+         * Returns the bytes for an encoding ({@code null} for identity), or null if there is no such variant.
+         */
+        public byte[] getBytes(String encoding) {
+            if (encoding == null) {
+                return identity;
+            }
+            return "br".equals(encoding) ? brotli : "gzip".equals(encoding) ? gzip : null;
+        }
+
+        /**
+         * Picks the smallest variant the client accepts.
+         *
+         * @return {@code "br"}, {@code "gzip"} or null for identity
+         */
+        public String negotiate(String acceptEncoding) {
+            if (acceptEncoding == null) {
+                return null;
+            }
+            if (brotli != null && accepts(acceptEncoding, "br")) {
+                return "br";
+            }
+            if (gzip != null && accepts(acceptEncoding, "gzip")) {
+                return "gzip";
+            }
+            return null;
+        }
+
+        private static boolean accepts(String acceptEncoding, String encoding) {
+            for (String token : acceptEncoding.split(",")) {
+                String[] parts = token.trim().split(";");
+                if (parts[0].trim().equalsIgnoreCase(encoding)) {
+                    // "gzip;q=0" explicitly refuses it
+                    return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+                }
+            }
+            return false;
+        }
+    }
+
+    private AssetCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Loads the assets from {@code web/}, or from the running JAR if that directory does not exist.
+     */
+    public static AssetCache load() throws IOException {
+        Path webDirectory = Paths.get(WEB_DIRECTORY);
+        if (Files.isDirectory(webDirectory)) {
+            AssetCache cache = new AssetCache(webDirectory);
+            cache.loadDirectory();
+            if (WATCH) {
+                cache.startWatcher();
+            }
+            return cache;
+        }
+        logger.info("Web directory not found. Loading web files from the JAR...");
+        AssetCache cache = new AssetCache(null);
+        cache.loadJar();
+        return cache;
+    }
+
+    /**
+     * Returns the cached asset for a request path, or null if there is none.
+     */
+    public Asset get(String path) {
+        return assets.get(path);
+    }
+
+    /**
+     * Returns the file behind a path that is too large to cache, or null if there is none.
+     */
+    public Path largeFile(String path) {
+        if (directory == null || path.contains("..")) {
+            return null;
+        }
+        Path file = directory.resolve(path.substring(1)).normalize();
+        return file.startsWith(directory) && Files.isRegularFile(file) ? file : null;
+    }
+
+    public int size() {
+        return assets.size();
+    }
+
+    private void loadDirectory() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file)) {
+                    loadFile(file);
+                }
+            }
+        }
+        logger.info("Cached {} web files from {}", assets.size(), directory);
+    }
+
+    private void loadFile(Path file) throws IOException {
+        String path = pathOf(file);
+        if (isPrecompressed(path)) {
+            // A variant changed; reload the file it belongs to
+            Path original = file.resolveSibling(file.getFileName().toString().replaceFirst("\\.(br|gz)$", ""));
+            if (Files.isRegularFile(original)) {
+                loadFile(original);
+            }
+            return;
+        }
+        if (!Files.isRegularFile(file) || Files.size(file) > CACHE_MAX_BYTES) {
+            assets.remove(path);
+            return;
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        Path brotli = file.resolveSibling(file.getFileName() + ".br");
+        Path gzip = file.resolveSibling(file.getFileName() + ".gz");
+        assets.put(path, createAsset(path, bytes,
+                Files.isRegularFile(gzip) ? Files.readAllBytes(gzip) : null,
+                Files.isRegularFile(brotli) ? Files.readAllBytes(brotli) : null));
+    }
+
+    private String pathOf(Path file) {
+        return "/" + directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+    }
+
+    private static boolean isPrecompressed(String path) {
+        return path.endsWith(".br") || path.endsWith(".gz");
+    }
+
+    private void loadJar() throws IOException {
+        URL location = getClass().getProtectionDomain().getCodeSource().getLocation();
+        Map<String, byte[]> files = new HashMap<>();
+        try (InputStream jarStream = location.openStream();
+             ZipInputStream zipInputStream = new ZipInputStream(jarStream)) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (name.startsWith(WEB_DIRECTORY + "/") && !entry.isDirectory()) {
+                    files.put(name.substring(WEB_DIRECTORY.length()), zipInputStream.readAllBytes());
+                }
+            }
+        }
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            String path = file.getKey();
+            if (!isPrecompressed(path)) {
+                assets.put(path, createAsset(path, file.getValue(), files.get(path + ".gz"), files.get(path + ".br")));
+            }
+        }
+        logger.info("Cached {} web files from {}", assets.size(), location);
+    }
+
+    private static Asset createAsset(String path, byte[] bytes, byte[] gzip, byte[] brotli) throws IOException {
+        String contentType = contentTypeOf(path);
+        if (gzip == null && isCompressible(contentType)) {
+            gzip = gzip(bytes);
+            if (gzip.length >= bytes.length) {
+                gzip = null;
+            }
+        }
+        return new Asset(path, contentType, digest(bytes), bytes, gzip, brotli);
+    }
+
+    static String contentTypeOf(String path) {
+        int dot = path.lastIndexOf('.');
+        String contentType = dot < 0 ? null : CONTENT_TYPES.get(path.substring(dot + 1).toLowerCase());
+        return contentType != null ? contentType : "application/octet-stream";
+    }
+
+    private static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/") || contentType.startsWith("application/json")
+                || contentType.startsWith("image/svg");
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    private static String digest(byte[] bytes) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder hex = new StringBuilder(32);
+            for (int i = 0; i < 16; i++) {
+                hex.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private void startWatcher() throws IOException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+        try (Stream<Path> dirs = Files.walk(directory)) {
+            for (Path dir : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+                directories.put(register(watcher, dir), dir);
+            }
+        }
+
+        Thread thread = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Path dir = directories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (dir == null || event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        continue;
+                    }
+                    Path file = dir.resolve((Path) event.context());
+                    try {
+                        if (Files.isDirectory(file)) {
+                            directories.put(register(watcher, file), file);
+                        } else {
+                            loadFile(file);
+                            logger.info("Reloaded web file {}", pathOf(file));
+                        }
+                    } catch (IOException e) {
+                        logger.warn("Failed to reload web file {}: {}", file, e.getMessage());
+                    }
+                }
+                if (!key.reset()) {
+                    directories.remove(key);
+                }
+            }
+        }, "web-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Watching {} for changes", directory);
+    }
+
+    private static WatchKey register(WatchService watcher, Path dir) throws IOException {
+        return dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+    }
+}
@@ -0,0 +1,157 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Output stream that hands log output to a background thread through a fixed ring buffer, so a
+ * thread that logs never waits for the console or a slow pipe.
+ * <p>
+ * slf4j-simple writes to {@code System.out} (see {@code simplelogger.properties}); {@link #install}
+ * replaces {@code System.out} with a stream on top of this one. Output is moved into the ring a
+ * whole line at a time; if the ring ({@code klotski.log.bufferBytes}) has no room for a line, the line
+ * is dropped instead of waiting, and the writer thread reports how many bytes were lost.
+ * {@code -Dklotski.log.async=false} keeps logging synchronous.
+ */
+public class AsyncLogStream extends OutputStream {
+    private static final boolean ASYNC = Boolean.parseBoolean(System.getProperty("klotski.log.async", "true"));
+    private static final int BUFFER_BYTES = Math.max(4096, Integer.getInteger("klotski.log.bufferBytes", 1 << 20));
+    private static final int WRITE_CHUNK_BYTES = 64 * 1024;
+
+    private final OutputStream target;
+    private final byte[] ring = new byte[BUFFER_BYTES];
+    private byte[] line = new byte[256]; // guarded by this, the line being written
+    private int lineLength; // guarded by this
+    private long head; // guarded by this, next byte for the writer thread
+    private long tail; // guarded by this, next free byte
+    private boolean writing; // guarded by this, the writer thread holds bytes taken from the ring
+    private long dropped; // guarded by this, bytes lost since the last report
+    private final Thread writer;
+
+    public AsyncLogStream(OutputStream target) {
+        this.target = target;
+        writer = new Thread(this::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Routes {@code System.out} through a new async stream, unless {@code klotski.log.async} is false.
+     *
+     * @return the stream, or null if logging stays synchronous
+     */
+    public static AsyncLogStream install() {
+        if (!ASYNC) {
+            return null;
+        }
+        AsyncLogStream stream = new AsyncLogStream(System.out);
+        System.setOut(new PrintStream(stream, false));
+        return stream;
+    }
+
+    @Override
+    public void write(int b) {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        // PrintStream locks itself around println, so the pieces of one line arrive together
+        int end = off + len;
+        while (off < end) {
+            int newline = off;
+            while (newline < end && b[newline] != '\n') {
+                newline++;
+            }
+            int count = Math.min(newline + 1, end) - off;
+            if (lineLength + count > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + count));
+            }
+            System.arraycopy(b, off, line, lineLength, count);
+            lineLength += count;
+            off += count;
+            if (newline < end) {
+                commitLine();
+            }
+        }
+    }
+
+    private void commitLine() {
+        int len = lineLength;
+        lineLength = 0;
+        if (len > ring.length - (tail - head)) {
+            dropped += len;
+        } else {
+            boolean wasEmpty = head == tail;
+            int start = (int) (tail % ring.length);
+            int first = Math.min(len, ring.length - start);
+            System.arraycopy(line, 0, ring, start, first);
+            System.arraycopy(line, first, ring, 0, len - first);
+            tail += len;
+            if (wasEmpty) {
+                notifyAll();
+            }
+        }
+        if (line.length > 4096) {
+            line = new byte[256]; // do not keep a buffer sized for one huge line
+        }
+    }
+
+    /**
+     * Does nothing: the writer thread flushes after every batch it writes.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Waits until everything written so far is out, e.g. before the process exits.
+     */
+    public synchronized void awaitDrained(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining;
+        while ((head != tail || writing) && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+    }
+
+    private void drain() {
+        byte[] chunk = new byte[WRITE_CHUNK_BYTES];
+        while (true) {
+            int length;
+            long lost;
+            synchronized (this) {
+                writing = false;
+                notifyAll();
+                while (head == tail && dropped == 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                int start = (int) (head % ring.length);
+                length = (int) Math.min(Math.min(tail - head, chunk.length), ring.length - start);
+                System.arraycopy(ring, start, chunk, 0, length);
+                head += length; // writers may reuse the space while this chunk is written out
+                // Only report losses between whole lines
+                lost = length == 0 || chunk[length - 1] == '\n' ? dropped : 0;
+                dropped -= lost;
+                writing = true;
+            }
+            try {
+                target.write(chunk, 0, length);
+                if (lost > 0) {
+                    target.write(("[" + lost + " bytes of log output dropped]" + System.lineSeparator())
+                            .getBytes(StandardCharsets.UTF_8));
+                }
+                target.flush();
+            } catch (IOException e) {
+                // Nowhere left to report it; keep draining so writers are never stuck
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Connects the server nodes of a cluster, so a load balancer can spread players over several of them.
+ * <p>
+ * Every node publishes what changes locally: board updates of its players, which users are online on
+ * it, issued and revoked login tokens (as hashes) and added or rehashed users. The other nodes receive
+ * these through their {@link Listener}s and keep a copy: spectators on any node see every board, the
+ * online-user list covers the cluster, and a token issued by one node logs in on all of them. Nothing
+ * is replayed to a node that was down, so tokens and users created meanwhile stay unknown to it
+ * until they change again. Game saves, the leaderboard and move history stay with the node that
+ * has them, so a spectator on another node gets the current board but no replay.
+ * <p>
+ * {@code -Dklotski.backplane} selects the implementation: {@code local} (default, {@link LocalBackplane},
+ * nodes in one JVM) or {@code tcp} ({@link TcpBackplane}, nodes connected directly with no broker and
+ * authenticated by a shared secret).
+ */
+public interface Backplane extends Closeable {
+    /**
+     * Returns the name of this node, unique in the cluster.
+     */
+    String getNodeId();
+
+    void addListener(Listener listener);
+
+    void publishBoard(BoardUpdate update);
+
+    /**
+     * Announces that a user logged in on this node, or that their last socket here closed.
+     */
+    void publishPresence(String username, boolean online);
+
+    void publishToken(String hash, String username, long expiryTime);
+
+    void publishTokenRevoked(String hash);
+
+    /**
+     * Announces a new user or a changed password; the password is in its stored, hashed form.
+     */
+    void publishUser(String username, String password);
+
+    /**
+     * Receives what other nodes publish. Callbacks run on a backplane thread and must not block.
+     */
+    interface Listener {
+        default void onBoard(String username, String header, String rows, long board) {
+        }
+
+        default void onPresence(String node, String username, boolean online) {
+        }
+
+        /**
+         * A node left or reconnected; forget what it said about its online users, it sends them
+         * again when it is back.
+         */
+        default void onNodeDown(String node) {
+        }
+
+        default void onToken(String hash, String username, long expiryTime) {
+        }
+
+        default void onTokenRevoked(String hash) {
+        }
+
+        default void onUser(String username, String password) {
+        }
+    }
+
+    static Backplane open() throws IOException {
+        String type = System.getProperty("klotski.backplane", "local");
+        if ("tcp".equals(type)) {
+            return TcpBackplane.open();
+        }
+        if (!"local".equals(type)) {
+            throw new IllegalArgumentException("Unknown klotski.backplane type: " + type);
+        }
+        return new LocalBackplane();
+    }
+}
@@ -0,0 +1,65 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary WebSocket sub-protocol for board updates, negotiated as {@value #SUBPROTOCOL}.
+ * <p>
+ * Every frame is {@code [type:u8][nameLength:u8][name:utf8][payload]}:
+ * <ul>
+ *   <li>{@link #FULL_BOARD}: payload is the 8-byte packed {@link Board}</li>
+ *   <li>{@link #MOVE}: payload is one byte, {@code origin << 2 | direction}, applied to the last
+ *       board of that user the receiver got</li>
+ * </ul>
+ * Frames sent by a player may leave the name empty; the server uses the logged-in username.
+ */
+public final class BinaryProtocol {
+    public static final String SUBPROTOCOL = "klotski.bin.v1";
+    public static final byte FULL_BOARD = 1;
+    public static final byte MOVE = 2;
+
+    private BinaryProtocol() {
+    }
+
+    public static byte[] encodeName(String username) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        if (name.length > 255) {
+            throw new IllegalArgumentException("Username too long for binary frame: " + username);
+        }
+        return name;
+    }
+
+    public static byte[] encodeFullBoard(byte[] name, long board) {
+        ByteBuffer frame = ByteBuffer.allocate(2 + name.length + 8);
+        frame.put(FULL_BOARD).put((byte) name.length).put(name).putLong(board);
+        return frame.array();
+    }
+
+    public static byte[] encodeMove(byte[] name, int move) {
+        byte[] frame = new byte[2 + name.length + 1];
+        frame[0] = MOVE;
+        frame[1] = (byte) name.length;
+        System.arraycopy(name, 0, frame, 2, name.length);
+        frame[frame.length - 1] = (byte) move;
+        return frame;
+    }
+
+    /**
+     * Skips the type and name header of a frame, leaving {@code frame} positioned at the payload.
+     *
+     * @return the frame type, or -1 if the frame is truncated
+     */
+    public static int readHeader(ByteBuffer frame) {
+        if (frame.remaining() < 2) {
+            return -1;
+        }
+        int type = frame.get();
+        int nameLength = frame.get() & 0xFF;
+        if (frame.remaining() < nameLength) {
+            return -1;
+        }
+        frame.position(frame.position() + nameLength);
+        return type;
+    }
+}
@@ -0,0 +1,373 @@
+package io.github.jimzhouzzy.klotski.server;
+
+/**
+ * Packed representation of a 4x5 Klotski board.
+ * Each of the 20 cells takes 3 bits of a long (cell 0 is the top-left corner, row-major),
+ * so a whole board is a single primitive value that can be compared, hashed and sent as 8 bytes.
+ * A cell code carries the piece letter and its orientation, which makes the piece layout
+ * recoverable from the cells alone.
+ */
+public final class Board {
+    public static final int WIDTH = 4;
+    public static final int HEIGHT = 5;
+    public static final int CELLS = WIDTH * HEIGHT;
+    public static final long INVALID = -1L; // valid boards only use the low 60 bits
+
+    public static final int EMPTY = 0;
+    public static final int SOLDIER = 1;     // 'S', 1x1
+    public static final int GENERAL_V = 2;   // 'G', 1 wide and 2 tall
+    public static final int GENERAL_H = 3;   // 'G', 2 wide and 1 tall
+    public static final int GUAN_YU_H = 4;   // 'Y', 2 wide and 1 tall
+    public static final int GUAN_YU_V = 5;   // 'Y', 1 wide and 2 tall
+    public static final int CAO_CAO = 6;     // 'C', 2x2
+
+    public static final int EXIT_ORIGIN = 3 * WIDTH + 1; // Cao Cao's top-left corner when solved
+    public static final int MAX_SUCCESSORS = 4 * CELLS;
+
+    public static final int UP = 0;
+    public static final int RIGHT = 1;
+    public static final int DOWN = 2;
+    public static final int LEFT = 3;
+
+    private static final char[] LETTERS = {'.', 'S', 'G', 'G', 'Y', 'Y', 'C'};
+    private static final int[] WIDTHS = {1, 1, 1, 2, 2, 1, 2};
+    private static final int[] HEIGHTS = {1, 1, 2, 1, 1, 2, 2};
+    // Cells covered by a piece whose top-left corner is cell 0
+    private static final int[] SHAPES = {0, 0b1, 0b10001, 0b11, 0b11, 0b10001, 0b110011};
+    private static final int[] STEPS = {-WIDTH, 1, WIDTH, -1};
+    // Cells a piece newly covers when it steps, by code, direction and origin; -1 if it would leave the board
+    private static final int[][][] MOVE_TARGETS = new int[LETTERS.length][4][CELLS];
+
+    static {
+        for (int code = 0; code < LETTERS.length; code++) {
+            for (int direction = 0; direction < 4; direction++) {
+                for (int origin = 0; origin < CELLS; origin++) {
+                    int row = origin / WIDTH + (direction == DOWN ? 1 : direction == UP ? -1 : 0);
+                    int col = origin % WIDTH + (direction == RIGHT ? 1 : direction == LEFT ? -1 : 0);
+                    if (code == EMPTY || row < 0 || col < 0
+                            || row + HEIGHTS[code] > HEIGHT || col + WIDTHS[code] > WIDTH) {
+                        MOVE_TARGETS[code][direction][origin] = -1;
+                    } else {
+                        MOVE_TARGETS[code][direction][origin] =
+                                shapeMask(code, origin + STEPS[direction]) & ~shapeMask(code, origin);
+                    }
+                }
+            }
+        }
+    }
+
+    private Board() {
+    }
+
+    public static int cell(long board, int index) {
+        return (int) (board >>> (3 * index)) & 7;
+    }
+
+    public static char letter(int code) {
+        return LETTERS[code];
+    }
+
+    public static int width(int code) {
+        return WIDTHS[code];
+    }
+
+    public static int height(int code) {
+        return HEIGHTS[code];
+    }
+
+    /**
+     * Returns the cells covered by a piece of the given code placed at {@code origin}, as a 20-bit mask.
+     */
+    public static int shapeMask(int code, int origin) {
+        return SHAPES[code] << origin;
+    }
+
+    /**
+     * Returns the 20-bit mask of occupied cells.
+     */
+    public static int occupancy(long board) {
+        int mask = 0;
+        for (int i = 0; i < CELLS; i++) {
+            if (cell(board, i) != EMPTY) {
+                mask |= 1 << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Returns the 20-bit mask of piece top-left corners.
+     */
+    public static int origins(long board) {
+        int origins = 0;
+        int assigned = 0;
+        for (int i = 0; i < CELLS; i++) {
+            if ((assigned & (1 << i)) != 0) {
+                continue;
+            }
+            int code = cell(board, i);
+            if (code == EMPTY) {
+                continue;
+            }
+            origins |= 1 << i;
+            assigned |= shapeMask(code, i);
+        }
+        return origins;
+    }
+
+    /**
+     * Parses the text rows sent by clients, e.g. {@code "G C C G\nG C C G\n..."}.
+     * Only the first four cells of each of the five rows are used.
+     *
+     * @return the packed board, or {@link #INVALID} if the rows do not form a board
+     */
+    public static long parse(CharSequence text) {
+        return parse(text, 0, text.length());
+    }
+
+    public static long parse(CharSequence text, int start, int end) {
+        char[] letters = new char[CELLS];
+        int row = 0;
+        int col = 0;
+        for (int i = start; i < end && row < HEIGHT; i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                if (col < WIDTH) {
+                    return INVALID;
+                }
+                row++;
+                col = 0;
+            } else if (c != ' ' && c != '\r' && c != '\t' && col < WIDTH) {
+                letters[row * WIDTH + col] = c;
+                col++;
+            }
+        }
+        if (row < HEIGHT - 1 || (row == HEIGHT - 1 && col < WIDTH)) {
+            return INVALID;
+        }
+        return fromLetters(letters);
+    }
+
+    private static long fromLetters(char[] letters) {
+        long board = 0;
+        int assigned = 0;
+        for (int i = 0; i < CELLS; i++) {
+            if ((assigned & (1 << i)) != 0) {
+                continue;
+            }
+            int code;
+            switch (letters[i]) {
+                case '.':
+                    continue;
+                case 'S':
+                    code = SOLDIER;
+                    break;
+                case 'C':
+                    code = CAO_CAO;
+                    break;
+                case 'G':
+                    // Generals are usually upright, Guan Yu usually lies flat
+                    code = fits(letters, assigned, GENERAL_V, i) ? GENERAL_V : GENERAL_H;
+                    break;
+                case 'Y':
+                    code = fits(letters, assigned, GUAN_YU_H, i) ? GUAN_YU_H : GUAN_YU_V;
+                    break;
+                default:
+                    return INVALID;
+            }
+            if (!fits(letters, assigned, code, i)) {
+                return INVALID;
+            }
+            int mask = shapeMask(code, i);
+            assigned |= mask;
+            board = fill(board, mask, code);
+        }
+        return board;
+    }
+
+    private static boolean fits(char[] letters, int assigned, int code, int origin) {
+        int row = origin / WIDTH;
+        int col = origin % WIDTH;
+        if (col + WIDTHS[code] > WIDTH || row + HEIGHTS[code] > HEIGHT) {
+            return false;
+        }
+        int mask = shapeMask(code, origin);
+        if ((mask & assigned) != 0) {
+            return false;
+        }
+        for (int i = origin; i < CELLS; i++) {
+            if ((mask & (1 << i)) != 0 && letters[i] != letters[origin]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long fill(long board, int mask, int code) {
+        while (mask != 0) {
+            int i = Integer.numberOfTrailingZeros(mask);
+            mask &= mask - 1;
+            board = (board & ~(7L << (3 * i))) | ((long) code << (3 * i));
+        }
+        return board;
+    }
+
+    public static String toText(long board) {
+        StringBuilder text = new StringBuilder(CELLS * 2);
+        for (int i = 0; i < CELLS; i++) {
+            text.append(LETTERS[cell(board, i)]);
+            text.append(i % WIDTH == WIDTH - 1 ? '\n' : ' ');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Moves the piece whose top-left corner is {@code origin} one cell in {@code direction}.
+     *
+     * @return the new board, or {@link #INVALID} if the move is not legal
+     */
+    public static long move(long board, int origin, int direction) {
+        if (origin < 0 || origin >= CELLS || direction < 0 || direction > 3
+                || (origins(board) & (1 << origin)) == 0) {
+            return INVALID;
+        }
+        return moveFrom(board, occupancy(board), origin, direction);
+    }
+
+    private static long moveFrom(long board, int occupancy, int origin, int direction) {
+        int code = cell(board, origin);
+        int target = MOVE_TARGETS[code][direction][origin];
+        if (target < 0 || (target & occupancy) != 0) {
+            return INVALID;
+        }
+        return shift(board, code, origin, direction);
+    }
+
+    /**
+     * Returns the cells a piece would newly cover by stepping in {@code direction}: the move is legal
+     * exactly when none of them is occupied. Returns -1 if the piece would leave the board.
+     */
+    public static int moveTarget(int code, int origin, int direction) {
+        return MOVE_TARGETS[code][direction][origin];
+    }
+
+    /**
+     * Returns the cell index offset of one step in {@code direction}.
+     */
+    public static int step(int direction) {
+        return STEPS[direction];
+    }
+
+    /**
+     * Moves a piece without checking the move; see {@link #moveTarget}.
+     */
+    public static long shift(long board, int code, int origin, int direction) {
+        return fill(fill(board, shapeMask(code, origin), EMPTY), shapeMask(code, origin + STEPS[direction]), code);
+    }
+
+    /**
+     * Whether a packed value is a well-formed board: every piece lies fully on the board and
+     * all of its cells carry its code.
+     */
+    public static boolean isValid(long board) {
+        if ((board >>> (3 * CELLS)) != 0) {
+            return false;
+        }
+        int assigned = 0;
+        for (int i = 0; i < CELLS; i++) {
+            if ((assigned & (1 << i)) != 0) {
+                continue;
+            }
+            int code = cell(board, i);
+            if (code == EMPTY) {
+                continue;
+            }
+            if (code >= LETTERS.length || i % WIDTH + WIDTHS[code] > WIDTH || i / WIDTH + HEIGHTS[code] > HEIGHT) {
+                return false;
+            }
+            int mask = shapeMask(code, i);
+            for (int j = i; j < CELLS; j++) {
+                if ((mask & (1 << j)) != 0 && ((assigned & (1 << j)) != 0 || cell(board, j) != code)) {
+                    return false;
+                }
+            }
+            assigned |= mask;
+        }
+        return true;
+    }
+
+    /**
+     * Writes every board reachable from {@code board} in one single-step move into {@code out},
+     * which needs room for {@link #MAX_SUCCESSORS} boards.
+     *
+     * @return the number of boards written
+     */
+    public static int successors(long board, long[] out) {
+        int count = 0;
+        int occupancy = occupancy(board);
+        int origins = origins(board);
+        while (origins != 0) {
+            int origin = Integer.numberOfTrailingZeros(origins);
+            origins &= origins - 1;
+            for (int direction = 0; direction < 4; direction++) {
+                long next = moveFrom(board, occupancy, origin, direction);
+                if (next != INVALID) {
+                    out[count++] = next;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Mirrors a board left to right. Cell codes carry no handedness, so the result is a valid board.
+     */
+    public static long mirror(long board) {
+        long mirrored = 0;
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                long code = cell(board, row * WIDTH + col);
+                mirrored |= code << (3 * (row * WIDTH + WIDTH - 1 - col));
+            }
+        }
+        return mirrored;
+    }
+
+    /**
+     * Returns the representative of a board and its mirror image, so both map to one solver state.
+     * Identical pieces are already interchangeable because cells only record the piece kind.
+     */
+    public static long canonical(long board) {
+        return Math.min(board, mirror(board));
+    }
+
+    /**
+     * Whether Cao Cao stands over the exit, i.e. at the bottom centre.
+     */
+    public static boolean isSolved(long board) {
+        return cell(board, EXIT_ORIGIN) == CAO_CAO && (origins(board) & (1 << EXIT_ORIGIN)) != 0;
+    }
+
+    /**
+     * Finds the single-step move that turns {@code from} into {@code to}.
+     *
+     * @return {@code origin << 2 | direction}, or -1 if no single move does it
+     */
+    public static int findMove(long from, long to) {
+        if (from == INVALID || to == INVALID || from == to) {
+            return -1;
+        }
+        int occupancy = occupancy(from);
+        int origins = origins(from);
+        while (origins != 0) {
+            int origin = Integer.numberOfTrailingZeros(origins);
+            origins &= origins - 1;
+            for (int direction = 0; direction < 4; direction++) {
+                if (moveFrom(from, occupancy, origin, direction) == to) {
+                    return origin << 2 | direction;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,91 @@
+package io.github.jimzhouzzy.klotski.server;
+
+/**
+ * One board update of a player, shared by every subscriber it is delivered to.
+ * The text and binary encodings are built lazily and at most once per update.
+ */
+public class BoardUpdate {
+    private final String username;
+    private final long board;
+    private final String header; // first line of the legacy text frame
+    private final String rows;   // board rows of the legacy text frame, or null to format them from the board
+    private String text;
+    private byte[] name;
+    private byte[] fullFrame;
+    private int lastMove = -1;
+    private byte[] lastMoveFrame;
+
+    public BoardUpdate(String username, String header, String rows, long board) {
+        this.username = username;
+        this.header = header;
+        this.rows = rows;
+        this.board = board;
+    }
+
+    /**
+     * An announcement for the subscribers of {@code topic}, sent as the given text to every socket
+     * (binary ones too) and replaced in a socket's outbox by the next one on that topic.
+     */
+    public static BoardUpdate message(String topic, String text) {
+        BoardUpdate update = new BoardUpdate(topic, null, null, Board.INVALID);
+        update.text = text;
+        return update;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public long getBoard() {
+        return board;
+    }
+
+    public String getHeader() {
+        return header;
+    }
+
+    /**
+     * Returns the board rows as the player sent them, or null if they are formatted from the board.
+     */
+    public String getRows() {
+        return rows;
+    }
+
+    public boolean hasBoard() {
+        return board != Board.INVALID;
+    }
+
+    /**
+     * The frame sent to text-protocol clients, unchanged from the original format.
+     */
+    public synchronized String text() {
+        if (text == null) {
+            String body = rows != null ? rows : Board.toText(board);
+            text = "Board state updated:\n" + header + "\n" + body + (body.endsWith("\n") ? "" : "\n");
+        }
+        return text;
+    }
+
+    public synchronized byte[] fullFrame() {
+        if (fullFrame == null) {
+            fullFrame = BinaryProtocol.encodeFullBoard(name(), board);
+        }
+        return fullFrame;
+    }
+
+    public synchronized byte[] moveFrame(int move) {
+        // Viewers that are in sync all see the same move, so one cached frame covers them
+        if (move != lastMove) {
+            lastMoveFrame = BinaryProtocol.encodeMove(name(), move);
+            lastMove = move;
+        }
+        return lastMoveFrame;
+    }
+
+    private byte[] name() {
+        if (name == null) {
+            name = BinaryProtocol.encodeName(username);
+        }
+        return name;
+    }
+}
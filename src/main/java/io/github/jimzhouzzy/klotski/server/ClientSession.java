@@ -0,0 +1,166 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Per-connection state of the WebSocket server.
+ */
+public class ClientSession {
+    private static final Metrics.Counter SENT_TEXT = sentCounter("text");
+    private static final Metrics.Counter SENT_FULL = sentCounter("full");
+    private static final Metrics.Counter SENT_MOVE = sentCounter("move");
+
+    private final WebSocket conn;
+    private volatile String username; // null until the socket logs in
+    private volatile boolean verified; // logged in with a login token, not just a name
+    private volatile boolean binary;  // negotiated BinaryProtocol.SUBPROTOCOL
+    private final Set<String> topics = ConcurrentHashMap.newKeySet();
+    // Last board of each watched user sent to this socket, the base for binary move deltas
+    private final Map<String, Long> lastSentBoards = new ConcurrentHashMap<>();
+    private final Outbox outbox = new Outbox();
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    private volatile long overHighWaterSince = -1;
+    private volatile boolean downgraded;
+    private String address; // rate limit key of the remote address, set on first use
+    private volatile boolean throttled; // board messages are being dropped by a rate limit
+
+    private static Metrics.Counter sentCounter(String type) {
+        return Metrics.counter("klotski_ws_messages_sent_total",
+                "Board updates sent to WebSocket clients by frame type", "type=\"" + type + "\"");
+    }
+
+    public ClientSession(WebSocket conn) {
+        this.conn = conn;
+    }
+
+    public WebSocket getConnection() {
+        return conn;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public boolean isVerified() {
+        return verified;
+    }
+
+    public void setVerified(boolean verified) {
+        this.verified = verified;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Returns the remote address without the port, the key of per-address rate limits.
+     */
+    public String getAddress() {
+        String key = address;
+        if (key == null) {
+            key = RateLimiter.addressOf(conn.getRemoteSocketAddress());
+            address = key; // racing threads compute the same string
+        }
+        return key;
+    }
+
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    public void setThrottled(boolean throttled) {
+        this.throttled = throttled;
+    }
+
+    public Set<String> getTopics() {
+        return topics;
+    }
+
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
+    public long getOverHighWaterSince() {
+        return overHighWaterSince;
+    }
+
+    public void setOverHighWaterSince(long overHighWaterSince) {
+        this.overHighWaterSince = overHighWaterSince;
+    }
+
+    public boolean isDowngraded() {
+        return downgraded;
+    }
+
+    public void setDowngraded(boolean downgraded) {
+        this.downgraded = downgraded;
+    }
+
+    /**
+     * Queues a board update and writes it right away if the socket is keeping up.
+     */
+    public void offer(BoardUpdate update) {
+        outbox.add(update);
+        flush();
+    }
+
+    /**
+     * Writes all pending updates, but only once Java-WebSocket has no buffered data left
+     * for this socket; otherwise they stay in the outbox where newer boards replace them.
+     * Only one thread writes at a time so frames of a user are never reordered.
+     */
+    public void flush() {
+        while (!outbox.isEmpty() && !conn.hasBufferedData()) {
+            if (!conn.isOpen()) {
+                return; // closing: onClose drops the session, pending updates go nowhere
+            }
+            if (!flushing.compareAndSet(false, true)) {
+                return; // the thread currently flushing re-checks the outbox before it leaves
+            }
+            try {
+                for (BoardUpdate update : outbox.drain()) {
+                    deliver(update);
+                }
+            } catch (WebsocketNotConnectedException e) {
+                return; // closed since the check above
+            } finally {
+                flushing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Sends a board update in this socket's protocol. Binary sockets get a one-byte move
+     * when the new board is a single move away from the last one they received.
+     */
+    private void deliver(BoardUpdate update) {
+        if (!binary || !update.hasBoard()) {
+            conn.send(update.text());
+            SENT_TEXT.inc();
+            return;
+        }
+        long board = update.getBoard();
+        Long previous = lastSentBoards.put(update.getUsername(), board);
+        if (previous != null && previous == board) {
+            return;
+        }
+        int move = previous == null ? -1 : Board.findMove(previous, board);
+        conn.send(move >= 0 ? update.moveFrame(move) : update.fullFrame());
+        (move >= 0 ? SENT_MOVE : SENT_FULL).inc();
+    }
+}
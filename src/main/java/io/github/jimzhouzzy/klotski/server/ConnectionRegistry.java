@@ -0,0 +1,100 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import org.java_websocket.WebSocket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Concurrent registry of open WebSocket connections.
+ * Membership changes rebuild an immutable snapshot array, so broadcasts iterate
+ * without taking any lock and never block logins or logouts on socket I/O.
+ */
+public class ConnectionRegistry {
+    private static final ClientSession[] EMPTY = new ClientSession[0];
+
+    private final ConcurrentHashMap<WebSocket, ClientSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(new Snapshot(0, EMPTY));
+
+    private static class Snapshot {
+        final long version;
+        final ClientSession[] sessions;
+
+        Snapshot(long version, ClientSession[] sessions) {
+            this.version = version;
+            this.sessions = sessions;
+        }
+    }
+
+    public ClientSession add(WebSocket conn) {
+        ClientSession session = new ClientSession(conn);
+        ClientSession previous = sessions.putIfAbsent(conn, session);
+        if (previous != null) {
+            return previous;
+        }
+        rebuildSnapshot();
+        return session;
+    }
+
+    public ClientSession remove(WebSocket conn) {
+        ClientSession session = sessions.remove(conn);
+        if (session != null) {
+            rebuildSnapshot();
+        }
+        return session;
+    }
+
+    public ClientSession get(WebSocket conn) {
+        return sessions.get(conn);
+    }
+
+    public String getUsername(WebSocket conn) {
+        ClientSession session = sessions.get(conn);
+        return session == null ? null : session.getUsername();
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Returns the current connections. The array is shared and must not be modified.
+     */
+    public ClientSession[] snapshot() {
+        return snapshot.get().sessions;
+    }
+
+    public List<String> getOnlineUsers() {
+        List<String> users = new ArrayList<>();
+        for (ClientSession session : snapshot()) {
+            String username = session.getUsername();
+            if (username != null) {
+                users.add(username);
+            }
+        }
+        return users;
+    }
+
+    public void clear() {
+        sessions.clear();
+        rebuildSnapshot();
+    }
+
+    private void rebuildSnapshot() {
+        // An array copied after our version bump reflects every change up to that version,
+        // so the highest version wins and a slower rebuild can never publish a stale view.
+        long newVersion = version.incrementAndGet();
+        ClientSession[] array = sessions.values().toArray(EMPTY);
+        Snapshot next = new Snapshot(newVersion, array);
+        while (true) {
+            Snapshot current = snapshot.get();
+            if (current.version >= newVersion || snapshot.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+}
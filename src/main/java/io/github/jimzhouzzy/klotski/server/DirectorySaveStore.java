@@ -0,0 +1,149 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The original layout: one {@code <user>/<date>.json} file per save and
+ * {@code <user>/Autosave-<date>.json} for the single autosave of a user.
+ */
+public class DirectorySaveStore implements SaveStore {
+    private static final Logger logger = LoggerFactory.getLogger(DirectorySaveStore.class);
+    private static final Gson gson = new Gson();
+    private final File root;
+
+    public DirectorySaveStore(Path root) {
+        this.root = root.toFile();
+        if (!this.root.exists()) {
+            this.root.mkdir();
+        }
+    }
+
+    @Override
+    public void put(GameSave save) throws IOException {
+        File userDir = new File(root, save.getUsername());
+        if (!userDir.exists()) {
+            userDir.mkdir();
+        }
+
+        String fileName;
+        if (save.getAutoSave()) {
+            deleteAutosaves(userDir);
+            fileName = "Autosave-" + save.getDate() + ".json";
+        } else {
+            fileName = save.getDate() + ".json";
+        }
+        try (FileWriter writer = new FileWriter(new File(userDir, fileName))) {
+            gson.toJson(save, writer);
+        }
+    }
+
+    @Override
+    public void delete(String username, String slot) {
+        File userDir = new File(root, username);
+        if (AUTOSAVE_SLOT.equals(slot)) {
+            deleteAutosaves(userDir);
+        } else {
+            File file = new File(userDir, slot + ".json");
+            if (file.exists()) {
+                file.delete();
+            }
+        }
+    }
+
+    private void deleteAutosaves(File userDir) {
+        File[] files = userDir.listFiles((dir, name) -> name.startsWith("Autosave-"));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    @Override
+    public List<SaveInfo> list(String username) {
+        // Everything but the save data is in the file names, so nothing is parsed here
+        List<SaveInfo> saves = new ArrayList<>();
+        File[] files = new File(root, username).listFiles((dir, name) -> name.endsWith(".json"));
+        if (files == null) {
+            return saves;
+        }
+        for (File saveFile : files) {
+            String name = saveFile.getName();
+            String date = name.substring(0, name.length() - ".json".length());
+            if (date.startsWith("Autosave-")) {
+                saves.add(new SaveInfo(username, AUTOSAVE_SLOT, date.substring("Autosave-".length()), true));
+            } else {
+                saves.add(new SaveInfo(username, date, date, false));
+            }
+        }
+        return saves;
+    }
+
+    @Override
+    public GameSave read(String username, String slot) {
+        File saveFile;
+        if (AUTOSAVE_SLOT.equals(slot)) {
+            File[] files = new File(root, username).listFiles((dir, name) -> name.startsWith("Autosave-"));
+            if (files == null || files.length == 0) {
+                return null;
+            }
+            saveFile = files[0];
+        } else {
+            saveFile = new File(new File(root, username), slot + ".json");
+        }
+        if (!saveFile.exists()) {
+            return null;
+        }
+        try (FileReader reader = new FileReader(saveFile)) {
+            return gson.fromJson(reader, GameSave.class);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to load save file: {}", saveFile.getName());
+            return null;
+        }
+    }
+
+    @Override
+    public Set<String> users() {
+        Set<String> users = new HashSet<>();
+        File[] userDirs = root.listFiles(File::isDirectory);
+        if (userDirs != null) {
+            for (File userDir : userDirs) {
+                users.add(userDir.getName());
+            }
+        }
+        return users;
+    }
+
+    @Override
+    public List<String> recentUsers(int limit) {
+        File[] userDirs = root.listFiles(File::isDirectory);
+        List<String> users = new ArrayList<>();
+        if (userDirs == null) {
+            return users;
+        }
+        Arrays.sort(userDirs, Comparator.comparingLong(File::lastModified).reversed());
+        for (int i = 0; i < userDirs.length && i < limit; i++) {
+            users.add(userDirs[i].getName());
+        }
+        return users;
+    }
+
+    @Override
+    public void close() {
+        // Nothing is kept open
+    }
+}
@@ -0,0 +1,196 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table from packed boards to solver distances (0..254, or {@link #UNSOLVABLE}).
+ * Keys and values live in two primitive buffers, so a lookup is a hash, a few probes and no allocation.
+ * {@link Board#INVALID} marks a free slot, which no real board can collide with.
+ * <p>
+ * A finished table can be written to a file and mapped back read-only, in which case the lookups
+ * run directly against the page cache instead of the heap.
+ */
+public final class DistanceTable {
+    public static final int UNKNOWN = -1;
+    public static final int UNSOLVABLE = 255;
+    public static final int MAX_DISTANCE = 254;
+
+    private static final int FILE_MAGIC = 0x4B4C4454; // "KLDT"
+    private static final int FILE_VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+
+    private final LongBuffer keys;
+    private final ByteBuffer values;
+    private final int mask;
+    private int size;
+
+    /**
+     * Creates a table that holds {@code expected} boards at a load factor of at most one half.
+     */
+    public DistanceTable(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(2, expected) * 2 - 1) << 1;
+        long[] slots = new long[capacity];
+        Arrays.fill(slots, Board.INVALID);
+        keys = LongBuffer.wrap(slots);
+        values = ByteBuffer.wrap(new byte[capacity]);
+        mask = capacity - 1;
+    }
+
+    private DistanceTable(LongBuffer keys, ByteBuffer values, int size) {
+        this.keys = keys;
+        this.values = values;
+        this.mask = keys.capacity() - 1;
+        this.size = size;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing spreads the packed cells over all bits
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int slot(long key) {
+        int i = hash(key) & mask;
+        long probe;
+        while ((probe = keys.get(i)) != key && probe != Board.INVALID) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the distance stored for a board, or {@link #UNKNOWN}.
+     */
+    public int get(long key) {
+        int i = slot(key);
+        return keys.get(i) == key ? values.get(i) & 0xFF : UNKNOWN;
+    }
+
+    public boolean contains(long key) {
+        return keys.get(slot(key)) == key;
+    }
+
+    /**
+     * Stores a distance unless the board is already present.
+     *
+     * @return true if the board was added
+     */
+    public boolean putIfAbsent(long key, int distance) {
+        int i = slot(key);
+        if (keys.get(i) == key) {
+            return false;
+        }
+        if ((size + 1) * 2 > keys.capacity()) {
+            throw new IllegalStateException("Distance table is full");
+        }
+        keys.put(i, key);
+        values.put(i, (byte) distance);
+        size++;
+        return true;
+    }
+
+    /**
+     * Stores a distance, replacing any previous one.
+     */
+    public void put(long key, int distance) {
+        if (!putIfAbsent(key, distance)) {
+            values.put(slot(key), (byte) distance);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return keys.capacity();
+    }
+
+    /**
+     * Whether adding one more board would go over the table's load factor.
+     */
+    public boolean isFull() {
+        return (size + 1) * 2 > keys.capacity();
+    }
+
+    /**
+     * Returns a copy of this table with twice the capacity.
+     */
+    public DistanceTable grow() {
+        DistanceTable bigger = new DistanceTable(capacity());
+        for (int i = 0; i < keys.capacity(); i++) {
+            long key = keys.get(i);
+            if (key != Board.INVALID) {
+                bigger.putIfAbsent(key, values.get(i) & 0xFF);
+            }
+        }
+        return bigger;
+    }
+
+    /**
+     * Writes the table to a file (temp file + atomic rename) in the layout {@link #map} reads:
+     * a 32-byte header (magic, version, tag, size, capacity), the key slots, then the value slots.
+     *
+     * @param tag identifies what the table was built from; {@link #map} refuses a different tag
+     */
+    public void write(Path file, long tag) throws IOException {
+        int capacity = capacity();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_BYTES + (long) capacity * (Long.BYTES + 1));
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            out.putInt(FILE_MAGIC).putInt(FILE_VERSION).putLong(tag).putInt(size).putInt(capacity).putLong(0);
+            for (int i = 0; i < capacity; i++) {
+                out.putLong(keys.get(i));
+            }
+            for (int i = 0; i < capacity; i++) {
+                out.put(values.get(i));
+            }
+            out.force();
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Maps a table written by {@link #write} read-only.
+     *
+     * @return the table, or null if the file does not exist, is damaged or was built with another tag
+     */
+    public static DistanceTable map(Path file, long tag) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                return null;
+            }
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            in.order(ByteOrder.LITTLE_ENDIAN);
+            if (in.getInt() != FILE_MAGIC || in.getInt() != FILE_VERSION || in.getLong() != tag) {
+                return null;
+            }
+            int size = in.getInt();
+            int capacity = in.getInt();
+            if (Integer.bitCount(capacity) != 1 || size * 2 > capacity
+                    || channel.size() != HEADER_BYTES + (long) capacity * (Long.BYTES + 1)) {
+                return null;
+            }
+            in.position(HEADER_BYTES).limit(HEADER_BYTES + capacity * Long.BYTES);
+            LongBuffer keys = in.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            in.limit(in.capacity()).position(HEADER_BYTES + capacity * Long.BYTES);
+            ByteBuffer values = in.slice();
+            return new DistanceTable(keys, values, size); // the mapping outlives the channel
+        }
+    }
+}
@@ -3,42 +3,140 @@ package io.github.jimzhouzzy.klotski.server;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
 
 public class GameSaveHandler implements HttpHandler {
-    private static final String SAVE_DIRECTORY = "gameSaves";
+    private static final Logger logger = LoggerFactory.getLogger(GameSaveHandler.class);
     private static final Gson gson = new Gson();
-    private static final Map<String, List<GameSave>> userSaves = new ConcurrentHashMap<>();
+    // Save metadata of recently used users that have saves, most recently used last; the save data
+    // itself stays in the store
+    private static final int INDEX_CACHE_USERS = Integer.getInteger("klotski.saves.indexCacheUsers", 10_000);
+    private static final Map<String, SaveIndex> userSaves = new LinkedHashMap<>(16, 0.75f, true);
+    private static final SaveStore saveStore;
+    // Number of recently active users to load in the background at startup, 0 to disable
+    private static final int WARMUP_USERS = Integer.getInteger("klotski.saves.warmup", 0);
+    // Serialized getSaves responses, most recently used last, bounded by total size
+    private static final long RESPONSE_CACHE_BYTES = Long.getLong("klotski.saves.responseCacheBytes", 16L << 20);
+    private static final Map<String, CachedResponse> responseCache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long responseCacheSize; // guarded by responseCache
+    // Index versions restart with the process, so ETags carry the start time as well
+    private static final String ETAG_PREFIX = "\"" + Long.toHexString(System.currentTimeMillis()) + "-";
+
+    private static class CachedResponse {
+        final long version;
+        final byte[] body;
+
+        CachedResponse(long version, byte[] body) {
+            this.version = version;
+            this.body = body;
+        }
+    }
+
+    private final GameWebSocketServer gameServer;
+
+    public GameSaveHandler(GameWebSocketServer gameServer) {
+        this.gameServer = gameServer;
+    }
 
     static {
-        // Ensure the save directory exists
-        File saveDir = new File(SAVE_DIRECTORY);
-        if (!saveDir.exists()) {
-            saveDir.mkdir();
-        }
-
-        // Load existing saves from disk
-        for (File userDir : saveDir.listFiles()) {
-            if (userDir.isDirectory()) {
-                String username = userDir.getName();
-                List<GameSave> saves = new ArrayList<>();
-                for (File saveFile : userDir.listFiles()) {
-                    try (FileReader reader = new FileReader(saveFile)) {
-                        GameSave save = gson.fromJson(reader, GameSave.class);
-                        saves.add(save);
-                    } catch (IOException e) {
-                        System.err.println("Failed to load save file: " + saveFile.getName());
-                    }
-                }
-                userSaves.put(username, saves);
+        // Open the save storage engine; saves are loaded per user when first needed
+        try {
+            saveStore = SaveStore.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to open game save store", e);
+        }
+        if (WARMUP_USERS > 0) {
+            CompletableFuture.runAsync(GameSaveHandler::warmUp, ForkJoinPool.commonPool());
+        }
+    }
+
+    private static void warmUp() {
+        List<String> users = saveStore.recentUsers(WARMUP_USERS);
+        users.parallelStream().forEach(username -> {
+            try {
+                savesOf(username, false);
+            } catch (IOException e) {
+                logger.warn("Failed to preload saves of {}: {}", username, e.getMessage());
+            }
+        });
+        logger.info("Preloaded saves of {} users", users.size());
+    }
+
+    /**
+     * Returns the save metadata of a user, listing it from the store if it is not cached. A user
+     * without saves is only cached when {@code create} is set, i.e. a save is about to be added, so
+     * looking up unknown names costs no memory.
+     */
+    private static SaveIndex savesOf(String username, boolean create) throws IOException {
+        SaveIndex saves;
+        synchronized (userSaves) {
+            saves = userSaves.get(username);
+        }
+        if (saves != null) {
+            return saves;
+        }
+        // List outside the lock so a slow store does not block other users' lookups
+        SaveIndex loaded = new SaveIndex();
+        List<SaveInfo> evicted = new ArrayList<>();
+        for (SaveInfo info : saveStore.list(username)) {
+            evicted.addAll(loaded.add(info));
+        }
+        if (loaded.isEmpty() && !create) {
+            return loaded;
+        }
+        synchronized (userSaves) {
+            saves = userSaves.putIfAbsent(username, loaded);
+            Iterator<String> eldest = userSaves.keySet().iterator();
+            while (userSaves.size() > INDEX_CACHE_USERS && eldest.hasNext()) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        if (saves != null) {
+            return saves;
+        }
+        // Saves kept under a larger retention limit
+        deleteSaves(evicted);
+        return loaded;
+    }
+
+    /**
+     * Reads one save of a user, the newest one if {@code slot} is null.
+     *
+     * @return the save, or null if there is none
+     */
+    static GameSave readSave(String username, String slot) throws IOException {
+        if (slot == null) {
+            SaveInfo[] saves = savesOf(username, false).snapshot().getSaves();
+            if (saves.length == 0) {
+                return null;
             }
+            slot = saves[0].getSlot();
+        }
+        return saveStore.read(username, slot);
+    }
+
+    private static void deleteSaves(List<SaveInfo> saves) throws IOException {
+        for (SaveInfo save : saves) {
+            saveStore.delete(save.getUsername(), save.getSlot());
+        }
+    }
+
+    public static void closeStore() {
+        try {
+            saveStore.close();
+        } catch (IOException e) {
+            logger.error("Failed to close game save store", e);
         }
-        System.out.println("Loaded user saves from disk: " + userSaves);
     }
 
     @Override
@@ -58,7 +156,12 @@ public class GameSaveHandler implements HttpHandler {
     private void handleUploadSave(HttpExchange exchange) throws IOException {
         // Parse request body
         String requestBody = new String(exchange.getRequestBody().readAllBytes());
-        GameSave save = gson.fromJson(requestBody, GameSave.class);
+        GameSave save;
+        try {
+            save = gson.fromJson(requestBody, GameSave.class);
+        } catch (JsonParseException e) {
+            save = null;
+        }
 
         // Validate save
         if (!validateSave(save)) {
@@ -69,53 +172,28 @@ public class GameSaveHandler implements HttpHandler {
             os.close();
             return;
         }
-
-        boolean autoSave = save.getAutoSave();
-        String saveFileName;
-
-        // Save the game save
-        String userDir = SAVE_DIRECTORY + "/" + save.getUsername();
-        File userDirFile = new File(userDir);
-        if (!userDirFile.exists()) {
-            userDirFile.mkdir();
+        // Every upload writes to the store, so each user is limited on top of the limit per address
+        if (!RateLimiter.UPLOAD_SAVE.tryAcquire(save.getUsername())) {
+            RateLimiter.reject(exchange);
+            return;
         }
 
-        if (autoSave) {
-            // Delete previous autosave if it exists
-            File[] files = userDirFile.listFiles((dir, name) -> name.startsWith("Autosave-"));
-            if (files != null) {
-                for (File file : files) {
-                    file.delete();
-                    System.out.println("Deleted previous autosave: " + file.getName());
-                }
-            }
-
-            saveFileName = userDir + "/" + "Autosave-" + save.getDate() + ".json";
-            System.out.println("Autosave uploaded for user: " + save.getUsername());
-        } else {
-            saveFileName = userDir + "/" + save.getDate() + ".json";
-
-            // Log the save
-            List<GameSave> saves = userSaves.computeIfAbsent(save.getUsername(), k -> new ArrayList<>());
-            saves.add(save);
-
-            // Limit to 10 saves for non-autosave
-            if (saves.size() > 3) {
-                saves.sort(Comparator.comparing(GameSave::getDate));
-                GameSave oldestSave = saves.remove(0);
-
-                // Delete the corresponding file from disk
-                String oldestSaveFileName = userDir + "/" + oldestSave.getDate() + ".json";
-                File oldestSaveFile = new File(oldestSaveFileName);
-                if (oldestSaveFile.exists()) {
-                    oldestSaveFile.delete();
-                }
+        SaveIndex saves = savesOf(save.getUsername(), true);
+        saveStore.put(save);
+        // The autosave slot holds only the latest autosave; manual saves beyond the limit drop the oldest
+        deleteSaves(saves.add(SaveInfo.of(save)));
+        synchronized (userSaves) {
+            // Evicted meanwhile, and perhaps listed again before the save was stored: list it afresh next time
+            if (userSaves.get(save.getUsername()) != saves) {
+                userSaves.remove(save.getUsername());
             }
         }
-
-        try (FileWriter writer = new FileWriter(saveFileName)) {
-            gson.toJson(save, writer);
+        invalidateResponse(save.getUsername());
+        if (save.getAutoSave()) {
+            logger.debug("Autosave uploaded for user: {}", save.getUsername());
         }
+        // Clients save when a game ends; count it if the player's board on the server is solved
+        gameServer.checkSolved(save.getUsername());
 
         // Respond to the client
         String response = gson.toJson(Map.of("code", 200, "message", "Save uploaded successfully"));
@@ -124,7 +202,7 @@ public class GameSaveHandler implements HttpHandler {
         os.write(response.getBytes());
         os.close();
 
-        System.out.println("Game saved for user: " + save.getUsername());
+        logger.debug("Game saved for user: {}", save.getUsername());
     }
 
     private void handleGetSaves(HttpExchange exchange) throws IOException {
@@ -132,45 +210,150 @@ public class GameSaveHandler implements HttpHandler {
         String query = exchange.getRequestURI().getQuery();
         Map<String, String> params = parseQuery(query);
         String username = params.get("username");
-        System.out.println("Query parameters: " + params);
-        System.out.println("Username: " + username);
-        System.out.println("User saves: " + userSaves);
-        System.out.println("User saves for " + username + ": " + userSaves.get(username));
-        System.out.println(userSaves.containsKey(username));
+        SaveIndex index = username == null ? null : savesOf(username, false);
 
-        if (username == null || !userSaves.containsKey(username)) {
+        if (index == null || index.isEmpty()) {
             String response = gson.toJson(Map.of("code", 404, "message", "No saves found for user"));
             exchange.sendResponseHeaders(404, response.length());
             OutputStream os = exchange.getResponseBody();
             os.write(response.getBytes());
             os.close();
-            System.out.println("No saves for user: " + username);
+            logger.debug("No saves for user: {}", username);
             return;
         }
 
-        // Retrieve saves
-        List<GameSave> saves = userSaves.get(username);
-        saves.sort(Comparator.comparing(GameSave::getDate).reversed()); // Sort by date (latest first)
-        System.out.println("Saves for user " + username + ": " + saves);
-
-        // Respond with saves
+        SaveIndex.Snapshot snapshot = index.snapshot();
+        String etag = ETAG_PREFIX + snapshot.getVersion() + "\"";
         exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
-        String response = gson.toJson(Map.of("code", 200, "saves", saves));
-        byte[] responseBytes = response.getBytes("UTF-8");
-        exchange.sendResponseHeaders(200, responseBytes.length);
-        OutputStream os = exchange.getResponseBody();
-        os.write(responseBytes);
-        os.close();
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+
+        // The client already has this version
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        CachedResponse cached = cachedResponse(username, snapshot.getVersion());
+        if (cached != null) {
+            exchange.sendResponseHeaders(200, cached.body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(cached.body);
+            }
+            return;
+        }
+
+        // Stream the saves, latest first, with chunked encoding and keep a copy for the cache
+        exchange.sendResponseHeaders(200, 0);
+        CopyingOutputStream body = new CopyingOutputStream(exchange.getResponseBody(), RESPONSE_CACHE_BYTES / 4);
+        try (JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8)))) {
+            writer.beginObject();
+            writer.name("code").value(200);
+            writer.name("saves").beginArray();
+            for (SaveInfo info : snapshot.getSaves()) {
+                GameSave save = saveStore.read(username, info.getSlot());
+                if (save != null) {
+                    gson.toJson(save, GameSave.class, writer);
+                }
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        byte[] copy = body.getCopy();
+        if (copy != null) {
+            cacheResponse(username, new CachedResponse(snapshot.getVersion(), copy));
+        }
+    }
+
+    private static CachedResponse cachedResponse(String username, long version) {
+        synchronized (responseCache) {
+            CachedResponse cached = responseCache.get(username);
+            return cached != null && cached.version == version ? cached : null;
+        }
+    }
+
+    private static void cacheResponse(String username, CachedResponse response) {
+        synchronized (responseCache) {
+            CachedResponse previous = responseCache.get(username);
+            if (previous != null && previous.version >= response.version) {
+                return;
+            }
+            responseCache.put(username, response);
+            responseCacheSize += response.body.length - (previous == null ? 0 : previous.body.length);
+            Iterator<CachedResponse> eldest = responseCache.values().iterator();
+            while (responseCacheSize > RESPONSE_CACHE_BYTES && eldest.hasNext()) {
+                responseCacheSize -= eldest.next().body.length;
+                eldest.remove();
+            }
+        }
+    }
 
-        System.out.println("Saves retrieved for user: " + username);
+    private static void invalidateResponse(String username) {
+        synchronized (responseCache) {
+            CachedResponse removed = responseCache.remove(username);
+            if (removed != null) {
+                responseCacheSize -= removed.body.length;
+            }
+        }
+    }
+
+    /**
+     * Passes writes through and keeps a copy of them, giving up on the copy past {@code limit} bytes.
+     */
+    private static class CopyingOutputStream extends FilterOutputStream {
+        private final long limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        CopyingOutputStream(OutputStream out, long limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (copy != null) {
+                copy.write(b);
+                checkLimit();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (copy != null) {
+                copy.write(b, off, len);
+                checkLimit();
+            }
+        }
+
+        private void checkLimit() {
+            if (copy.size() > limit) {
+                copy = null;
+            }
+        }
+
+        byte[] getCopy() {
+            return copy == null ? null : copy.toByteArray();
+        }
     }
 
     private boolean validateSave(GameSave save) {
-        // NOT IMPLEMENTED YET
-        return true;
+        if (save == null || save.getSaveData() == null) {
+            return false;
+        }
+        if (!LoginServer.validUsername(save.getUsername())) {
+            return false;
+        }
+        // A manual save's date is its slot and orders the index; an autosave may leave it out
+        if (save.getDate() == null) {
+            return save.getAutoSave();
+        }
+        return SaveInfo.parseEpochMillis(save.getDate()) != Long.MIN_VALUE;
     }
 
-    private Map<String, String> parseQuery(String query) {
+    static Map<String, String> parseQuery(String query) {
         Map<String, String> params = new HashMap<>();
         if (query != null) {
             String[] pairs = query.split("&");
@@ -3,129 +3,718 @@ package io.github.jimzhouzzy.klotski.server;
 import org.java_websocket.server.WebSocketServer;
 import org.java_websocket.WebSocket;
 import org.java_websocket.WebSocketImpl;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.IExtension;
 import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.protocols.IProtocol;
+import org.java_websocket.protocols.Protocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class GameWebSocketServer extends WebSocketServer {
-    public final Map<WebSocket, String> userConnections = Collections.synchronizedMap(new HashMap<>());
+    private static final Logger logger = LoggerFactory.getLogger(GameWebSocketServer.class);
+    public final ConnectionRegistry userConnections = new ConnectionRegistry();
+    private final SubscriptionIndex subscriptions = new SubscriptionIndex();
+    // The authoritative board of every player, kept across reconnects
+    private final Map<String, PlayerBoard> playerBoards = new ConcurrentHashMap<>();
+    private final Leaderboard leaderboard; // null when no rankings are kept
+    private volatile TokenStore tokenStore; // checks login:<user>:<token>; null accepts no token
+    private final Backplane backplane;
+    // The last board of every player on another node, for spectators catching up
+    private final Map<String, BoardUpdate> remoteBoards = new ConcurrentHashMap<>();
+    // The users online on each other node
+    private final Map<String, Set<String>> remoteUsers = new ConcurrentHashMap<>();
+
+    private static final String RECEIVED_HELP = "WebSocket messages received by type";
+    private static final Metrics.Counter RECEIVED_LOGIN = receivedCounter("login");
+    private static final Metrics.Counter RECEIVED_SUBSCRIBE = receivedCounter("subscribe");
+    private static final Metrics.Counter RECEIVED_REPLAY = receivedCounter("replay");
+    private static final Metrics.Counter RECEIVED_MOVE = receivedCounter("move");
+    private static final Metrics.Counter RECEIVED_BOARD_STATE = receivedCounter("boardState");
+    private static final Metrics.Counter RECEIVED_BINARY = receivedCounter("binary");
+    private static final Metrics.Counter RECEIVED_OTHER = receivedCounter("other");
+    private static final Metrics.Counter OPENED = Metrics.counter("klotski_ws_connections_opened_total",
+            "WebSocket connections opened", "");
+    private static final Metrics.Counter CLOSED = Metrics.counter("klotski_ws_connections_closed_total",
+            "WebSocket connections closed", "");
+    private static final Metrics.Histogram FAN_OUT = Metrics.histogram("klotski_ws_broadcast_recipients",
+            "Sockets a board update was queued for", "");
+    private static final Metrics.Histogram BROADCAST_TIME = Metrics.timer("klotski_ws_broadcast_duration_seconds",
+            "Time to queue a board update for its subscribers", "");
+
+    private static Metrics.Counter receivedCounter(String type) {
+        return Metrics.counter("klotski_ws_messages_received_total", RECEIVED_HELP, "type=\"" + type + "\"");
+    }
+
+    // Longest first line and board rows of a boardState: message that are relayed as sent
+    private static final int MAX_HEADER_LENGTH = 256;
+    private static final int MAX_ROWS_LENGTH = 64;
+
+    // Outboxes of sockets that were not writable are retried on this thread
+    private static final long FLUSH_INTERVAL_MILLIS = 10;
+    // How long a socket may stay over the outbox high-water mark before it is downgraded, then dropped
+    private static final long MAX_STALL_MILLIS = Long.getLong("klotski.outbox.maxStallMillis", 5000);
+    private final ScheduledExecutorService outboxFlusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "outbox-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public GameWebSocketServer(int port) {
-        super(new InetSocketAddress(port));
+        this(port, null);
+    }
+
+    public GameWebSocketServer(int port, Leaderboard leaderboard) {
+        this(port, leaderboard, new LocalBackplane());
+    }
+
+    /**
+     * Creates a server that shares board updates and online users with the other nodes on
+     * {@code backplane}. The caller still owns the backplane and closes it.
+     */
+    public GameWebSocketServer(int port, Leaderboard leaderboard, Backplane backplane) {
+        super(new InetSocketAddress(port), Collections.singletonList(createDraft()));
+        this.leaderboard = leaderboard;
+        this.backplane = backplane;
+        if (leaderboard != null) {
+            // Rank changes go through the outboxes like boards, to the leaderboard and lobby subscribers
+            leaderboard.setListener(message -> deliver(BoardUpdate.message(SubscriptionIndex.LEADERBOARD, message)));
+        }
+        backplane.addListener(new Backplane.Listener() {
+            @Override
+            public void onBoard(String username, String header, String rows, long board) {
+                BoardUpdate update = new BoardUpdate(username, header, rows, board);
+                if (update.hasBoard()) {
+                    remoteBoards.put(username, update);
+                }
+                deliver(update);
+            }
+
+            @Override
+            public void onPresence(String node, String username, boolean online) {
+                if (online) {
+                    remoteUsers.computeIfAbsent(node, n -> ConcurrentHashMap.newKeySet()).add(username);
+                } else {
+                    remoteUsers.computeIfPresent(node, (n, users) -> {
+                        users.remove(username);
+                        return users.isEmpty() ? null : users;
+                    });
+                }
+            }
+
+            @Override
+            public void onNodeDown(String node) {
+                remoteUsers.remove(node);
+            }
+        });
+    }
+
+    private static Draft createDraft() {
+        // Offer the binary board protocol; the empty protocol keeps clients without the header working
+        List<IProtocol> protocols = List.of(new Protocol(BinaryProtocol.SUBPROTOCOL), new Protocol(""));
+        return new Draft_6455(Collections.<IExtension>emptyList(), protocols);
     }
 
     @Override
     public void onOpen(WebSocket conn, ClientHandshake handshake) {
-        userConnections.put(conn, null);
-        System.out.println("New socket connection: " + conn.getRemoteSocketAddress());
-        System.out.println("Handshake resource descriptor: " + handshake.getResourceDescriptor());
+        ClientSession session = userConnections.add(conn);
+        OPENED.inc();
+        logger.debug("New socket connection: {}", conn.getRemoteSocketAddress());
+        logger.debug("Handshake resource descriptor: {}", handshake.getResourceDescriptor());
+
+        String requestedProtocols = handshake.getFieldValue("Sec-WebSocket-Protocol");
+        if (requestedProtocols != null && requestedProtocols.contains(BinaryProtocol.SUBPROTOCOL)) {
+            session.setBinary(true);
+        }
+
+        // Spectators may subscribe at connect time, e.g. ws://host:8002/jim or /?subscribe=jim,alice
+        // and ask for the last moves as well with replay=<n>, e.g. /jim?replay=20
+        List<String> topics = SubscriptionIndex.parseResourceDescriptor(handshake.getResourceDescriptor());
+        int replay = SubscriptionIndex.parseReplayCount(handshake.getResourceDescriptor());
+        for (String topic : topics) {
+            subscriptions.subscribe(session, topic);
+            catchUp(session, topic, replay);
+        }
     }
 
     @Override
     public void onClose(WebSocket conn, int code, String reason, boolean remote) {
-        String username = userConnections.remove(conn);
+        ClientSession session = userConnections.remove(conn);
+        if (session == null) {
+            return;
+        }
+        CLOSED.inc();
+        subscriptions.unsubscribeAll(session);
+        String username = session.getUsername();
         if (username != null) {
-            System.out.println("User " + username + " disconnected.");
+            logger.info("User {} disconnected.", username);
+            if (!userConnections.getOnlineUsers().contains(username)) {
+                backplane.publishPresence(username, false);
+            }
             broadcastOnlineUsers();
         }
     }
 
     @Override
     public void onError(WebSocket conn, Exception ex) {
-        ex.printStackTrace();
+        logger.error("WebSocket error on {}", conn == null ? "server" : conn.getRemoteSocketAddress(), ex);
     }
 
     @Override
     public void onStart() {
-        System.out.println("WebSocket server started on port " + getPort());
+        logger.info("WebSocket server started on port {}", getPort());
+        outboxFlusher.scheduleWithFixedDelay(this::flushOutboxes,
+                FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
     }
 
-    public void broadcastGameState(String gameState) {
-        synchronized (userConnections) {
-            for (WebSocket conn : userConnections.keySet()) {
-                conn.send(gameState);
+    private void flushOutboxes() {
+        long now = System.currentTimeMillis();
+        for (ClientSession session : userConnections.snapshot()) {
+            // Caught per socket: one failing socket must not hold up the others, nor cancel the task
+            try {
+                if (session.getOutbox().isEmpty()) {
+                    session.setOverHighWaterSince(-1);
+                    continue;
+                }
+                session.flush();
+                checkBackpressure(session, now);
+            } catch (RuntimeException e) {
+                logger.error("Failed to flush the outbox of {}", session.getConnection().getRemoteSocketAddress(), e);
+            }
+        }
+    }
+
+    private void checkBackpressure(ClientSession session, long now) {
+        if (!session.getOutbox().isOverHighWaterMark()) {
+            session.setOverHighWaterSince(-1);
+            return;
+        }
+        if (session.getOverHighWaterSince() < 0) {
+            session.setOverHighWaterSince(now);
+            return;
+        }
+        if (now - session.getOverHighWaterSince() < MAX_STALL_MILLIS) {
+            return;
+        }
+
+        WebSocket conn = session.getConnection();
+        if (!session.isDowngraded() && session.getTopics().contains(SubscriptionIndex.ALL_BOARDS)) {
+            // First step: stop sending every board, keep the users it asked for explicitly
+            subscriptions.unsubscribe(session, SubscriptionIndex.ALL_BOARDS);
+            session.setDowngraded(true);
+            session.setOverHighWaterSince(now);
+            conn.send("Warning: Connection too slow, unsubscribed from all boards.");
+            logger.warn("Downgraded slow socket {}: {}", conn.getRemoteSocketAddress(), session.getOutbox());
+        } else {
+            logger.warn("Disconnecting slow socket {}: {}", conn.getRemoteSocketAddress(), session.getOutbox());
+            conn.close(1013, "Too slow to keep up with board updates"); // 1013: try again later
+        }
+    }
+
+    /**
+     * Registers gauges of the outboxes of all sockets on {@code /metrics}, so that slow consumers can be
+     * spotted; how many updates were coalesced or dropped is counted by {@link Outbox}.
+     */
+    public void registerOutboxMetrics() {
+        Metrics.gauge("klotski_ws_outbox_depth", "Board updates waiting in the outboxes of all sockets", "", () -> {
+            long depth = 0;
+            for (ClientSession session : userConnections.snapshot()) {
+                depth += session.getOutbox().getDepth();
+            }
+            return depth;
+        });
+        Metrics.gauge("klotski_ws_outbox_max_depth", "Board updates waiting in the fullest outbox", "", () -> {
+            long max = 0;
+            for (ClientSession session : userConnections.snapshot()) {
+                max = Math.max(max, session.getOutbox().getDepth());
+            }
+            return max;
+        });
+        Metrics.gauge("klotski_ws_slow_connections", "Sockets over the outbox high-water mark", "", () -> {
+            long slow = 0;
+            for (ClientSession session : userConnections.snapshot()) {
+                if (session.getOutbox().isOverHighWaterMark()) {
+                    slow++;
+                }
             }
+            return slow;
+        });
+        Metrics.gauge("klotski_ws_downgraded_connections", "Sockets unsubscribed from all boards for being slow", "",
+                () -> {
+                    long downgraded = 0;
+                    for (ClientSession session : userConnections.snapshot()) {
+                        if (session.isDowngraded()) {
+                            downgraded++;
+                        }
+                    }
+                    return downgraded;
+                });
+    }
+
+    public void broadcastGameState(String gameState) {
+        for (ClientSession session : userConnections.snapshot()) {
+            session.getConnection().send(gameState);
         }
     }
 
+    /**
+     * Sends a board update only to the sockets subscribed to its user or to all boards, here and on
+     * the other nodes.
+     *
+     * @return the number of local sockets it was queued for
+     */
+    public int publishGameState(BoardUpdate update) {
+        int sent = deliver(update);
+        backplane.publishBoard(update);
+        return sent;
+    }
+
+    private int deliver(BoardUpdate update) {
+        long start = System.nanoTime();
+        int sent = subscriptions.publish(update);
+        BROADCAST_TIME.recordSince(start);
+        FAN_OUT.record(sent);
+        return sent;
+    }
+
+    private ClientSession getSession(WebSocket conn) {
+        ClientSession session = userConnections.get(conn);
+        return session != null ? session : userConnections.add(conn);
+    }
+
     @Override
     public void onMessage(WebSocket conn, String message) {
-        System.out.println("Message received:\n" + message);
+        logger.trace("Message received:\n{}", message);
+        countReceived(message);
+        ClientSession session = getSession(conn);
+        if (!RateLimiter.WS_ADDRESS.tryAcquire(session.getAddress())) {
+            return; // dropped without a reply, the sender is flooding
+        }
         if (message.startsWith("login:")) {
+            // login:<user> or login:<user>:<token>, where the token comes from the HTTP login
             String username = message.substring(6); // 提取用户名
-            System.out.println("Login request from " + username);
+            String token = null;
+            int separator = username.indexOf(':');
+            if (separator >= 0) {
+                token = username.substring(separator + 1);
+                username = username.substring(0, separator);
+            }
+            logger.debug("Login request from {}", username);
+            if (token != null) {
+                TokenStore tokens = tokenStore;
+                if (tokens == null || !username.equals(tokens.validate(token))) {
+                    logger.warn("Invalid login token from {}", username);
+                    conn.send("Error: Invalid or expired token.");
+                    return;
+                }
+            }
             if (LoginServer.userDatabase.containsKey(username)) {
+                session.setVerified(token != null);
                 setUser(conn, username);
-                System.out.println("User " + username + " logged in.");
+                logger.info("User {} logged in.", username);
                 conn.send("Login successful. Welcome, " + username + "!");
             } else {
-                System.out.println("Invalid login attempt from " + username);
+                logger.warn("Invalid login attempt from {}", username);
                 conn.send("Error: Invalid username.");
             }
             return;
         }
 
-        String username = getUsername(conn);
-        System.out.println("Current user: " + username);
+        // Subscriptions do not require a login so that spectators can watch without an account
+        if (message.startsWith("subscribe:")) {
+            List<String> topics = SubscriptionIndex.parseTopics(message.substring(10));
+            for (String topic : topics) {
+                subscriptions.subscribe(session, topic);
+            }
+            conn.send("Subscribed to: " + String.join(", ", session.getTopics()));
+            for (String topic : topics) {
+                catchUp(session, topic, 0);
+            }
+            return;
+        }
+
+        // replay:<user>,<n> sends the last n moves of a user, e.g. to animate a game a spectator joined late
+        if (message.startsWith("replay:")) {
+            List<String> arguments = SubscriptionIndex.parseTopics(message.substring(7));
+            int replay = MoveHistory.CAPACITY;
+            if (arguments.size() > 1) {
+                try {
+                    replay = Integer.parseInt(arguments.get(1));
+                } catch (NumberFormatException e) {
+                    conn.send("Error: Invalid replay length.");
+                    return;
+                }
+            }
+            PlayerBoard playerBoard = arguments.isEmpty() ? null : playerBoards.get(arguments.get(0));
+            if (playerBoard == null) {
+                conn.send("Error: No moves to replay.");
+                return;
+            }
+            conn.send(formatHistory(arguments.get(0), playerBoard.getHistory().recent(replay)));
+            return;
+        }
+
+        if (message.startsWith("unsubscribe:")) {
+            List<String> topics = SubscriptionIndex.parseTopics(message.substring(12));
+            for (String topic : topics) {
+                subscriptions.unsubscribe(session, topic);
+            }
+            conn.send("Subscribed to: " + String.join(", ", session.getTopics()));
+            return;
+        }
+
+        String username = session.getUsername();
         if (username == null) {
-            System.out.println("Message from unauthenticated user.");
+            logger.debug("Message from unauthenticated socket {}", conn.getRemoteSocketAddress());
             conn.send("Error: You must log in first.");
             return;
         }
         
         if (message.contains("GetOnlineUsers")) {
-            String onlineUsers = "Online users: " + String.join(", ", userConnections.values());
+            String onlineUsers = "Online users: " + String.join(", ", getOnlineUsers());
             conn.send(onlineUsers);
-            System.out.println(onlineUsers);
+            logger.debug(onlineUsers);
+        }
+
+        boolean boardMessage = message.startsWith("move:") || message.contains("boardState:");
+        if (boardMessage && !acquireBoard(session, username)) {
+            return;
+        }
+
+        if (message.startsWith("move:")) {
+            // A single move such as "move:16R": the piece at cell 16 steps right
+            int move = parseMove(message, 5);
+            PlayerBoard playerBoard = playerBoardOf(session, username);
+            long board = move < 0 ? Board.INVALID : playerBoard.move(move >>> 2, move & 3);
+            if (board == Board.INVALID) {
+                conn.send("Error: Illegal move.");
+                return;
+            }
+            publishGameState(new BoardUpdate(username, username + ":", null, board));
+            checkSolved(username, playerBoard);
+            return;
         }
 
         if (message.contains("boardState:")) {
-            // boardState is user(1st line of the message) + the last 5 rows of the message string
-            String[] lines = message.split("\n");
-            StringBuilder boardState = new StringBuilder();
-            boardState.append(lines[0]).append("\n");
-            // append last 5 lines of the message
-            for (int i = lines.length - 5; i < lines.length; i++) {
-                boardState.append(lines[i]).append("\n");
+            // boardState is user(1st line of the message) + the last 5 rows of the message string.
+            // Locate both by index so no per-line strings are created.
+            // A board one move away from the last one counts as that move, any other starts a new game.
+            int end = message.length();
+            while (end > 0 && message.charAt(end - 1) == '\n') {
+                end--;
             }
+            int rowsStart = 0;
+            int searchFrom = end;
+            for (int i = 0; i < Board.HEIGHT; i++) {
+                if (searchFrom < 0) {
+                    conn.send("Error: Malformed board state.");
+                    return;
+                }
+                int newline = message.lastIndexOf('\n', searchFrom - 1);
+                rowsStart = newline + 1;
+                searchFrom = newline;
+            }
+            int headerEnd = message.indexOf('\n');
+            if (headerEnd < 0) {
+                headerEnd = end;
+            }
+            // Both are passed on to every spectator and to the other nodes
+            if (headerEnd > MAX_HEADER_LENGTH || end - rowsStart > MAX_ROWS_LENGTH) {
+                conn.send("Error: Malformed board state.");
+                return;
+            }
+            String header = message.substring(0, headerEnd);
+
+            long board = Board.parse(message, rowsStart, end);
+            PlayerBoard playerBoard = playerBoardOf(session, username);
+            if (!playerBoard.update(board)) {
+                conn.send("Error: Malformed board state.");
+                return;
+            }
+            publishGameState(new BoardUpdate(username, header, message.substring(rowsStart, end), board));
+            checkSolved(username, playerBoard);
+        }
+    }
+
+    /**
+     * Parses a move written as the origin cell followed by U, R, D or L.
+     *
+     * @return {@code origin << 2 | direction}, or -1 if the text is not a move
+     */
+    static int parseMove(String text, int start) {
+        int end = text.length();
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        if (end - start < 2 || end - start > 3) {
+            return -1;
+        }
+        int origin = 0;
+        for (int i = start; i < end - 1; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            origin = origin * 10 + (c - '0');
+        }
+        int direction = "URDL".indexOf(Character.toUpperCase(text.charAt(end - 1)));
+        if (origin >= Board.CELLS || direction < 0) {
+            return -1;
+        }
+        return origin << 2 | direction;
+    }
+
+    static String formatMove(int move) {
+        return (move >>> 2) + String.valueOf("URDL".charAt(move & 3));
+    }
+
+    /**
+     * Formats history entries as one line each: the move (or "start" for a new game) and the
+     * board it led to in the 20-letter format of {@code /solver}.
+     */
+    static String formatHistory(String username, MoveHistory.Slice history) {
+        StringBuilder text = new StringBuilder(32 + history.size() * 28);
+        text.append("Move history of ").append(username).append(':');
+        for (int i = 0; i < history.size(); i++) {
+            int move = history.getMove(i);
+            text.append('\n')
+                    .append(move == MoveHistory.RESET ? "start" : formatMove(move))
+                    .append(' ')
+                    .append(SolverHandler.toLetters(history.getBoard(i)));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Brings a new subscriber up to date: the last {@code replay} moves of the user, then the
+     * current board, so a spectator does not wait for the next move to see anything.
+     * A subscriber to all boards gets the current board of every player.
+     */
+    private void catchUp(ClientSession session, String topic, int replay) {
+        if (topic.equals(SubscriptionIndex.ALL_BOARDS)) {
+            for (Map.Entry<String, PlayerBoard> player : playerBoards.entrySet()) {
+                offerCurrentBoard(session, player.getKey(), player.getValue());
+            }
+            for (BoardUpdate update : remoteBoards.values()) {
+                if (!playerBoards.containsKey(update.getUsername())) {
+                    session.offer(update);
+                }
+            }
+            return;
+        }
+        PlayerBoard playerBoard = playerBoards.get(topic);
+        if (playerBoard == null) {
+            // A player on another node; only the current board is known here
+            BoardUpdate update = remoteBoards.get(topic);
+            if (update != null) {
+                session.offer(update);
+            }
+            return;
+        }
+        if (replay > 0) {
+            session.getConnection().send(formatHistory(topic, playerBoard.getHistory().recent(replay)));
+        }
+        offerCurrentBoard(session, topic, playerBoard);
+    }
+
+    private static void offerCurrentBoard(ClientSession session, String username, PlayerBoard playerBoard) {
+        long board = playerBoard.get();
+        if (board != Board.INVALID) {
+            session.offer(new BoardUpdate(username, username + ":", null, board));
+        }
+    }
+
+    /**
+     * Returns the board a socket is about to change. Only a token proves who is behind a socket,
+     * so a game that a socket logged in by name alone takes part in is kept off the leaderboard.
+     */
+    private PlayerBoard playerBoardOf(ClientSession session, String username) {
+        PlayerBoard playerBoard = playerBoards.computeIfAbsent(username, u -> new PlayerBoard());
+        if (!session.isVerified()) {
+            playerBoard.markUnranked();
+        }
+        return playerBoard;
+    }
+
+    /**
+     * Returns the authoritative board of a player, or {@link Board#INVALID} if they have not started a game.
+     */
+    public long getBoard(String username) {
+        PlayerBoard board = playerBoards.get(username);
+        return board == null ? Board.INVALID : board.get();
+    }
+
+    /**
+     * Returns the recent moves of a player, or null if they have not started a game.
+     */
+    public MoveHistory getHistory(String username) {
+        PlayerBoard board = playerBoards.get(username);
+        return board == null ? null : board.getHistory();
+    }
+
+    private static void countReceived(String message) {
+        if (message.startsWith("move:")) {
+            RECEIVED_MOVE.inc();
+        } else if (message.startsWith("login:")) {
+            RECEIVED_LOGIN.inc();
+        } else if (message.startsWith("subscribe:") || message.startsWith("unsubscribe:")) {
+            RECEIVED_SUBSCRIBE.inc();
+        } else if (message.startsWith("replay:")) {
+            RECEIVED_REPLAY.inc();
+        } else if (message.contains("boardState:")) {
+            RECEIVED_BOARD_STATE.inc();
+        } else {
+            RECEIVED_OTHER.inc();
+        }
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, ByteBuffer message) {
+        RECEIVED_BINARY.inc();
+        ClientSession session = getSession(conn);
+        if (!RateLimiter.WS_ADDRESS.tryAcquire(session.getAddress())) {
+            return;
+        }
+        String username = session.getUsername();
+        if (username == null) {
+            conn.send("Error: You must log in first.");
+            return;
+        }
+        if (!acquireBoard(session, username)) {
+            return;
+        }
+
+        PlayerBoard playerBoard = playerBoardOf(session, username);
+        long board = Board.INVALID;
+        int type = BinaryProtocol.readHeader(message);
+        if (type == BinaryProtocol.FULL_BOARD && message.remaining() >= 8) {
+            long full = message.getLong();
+            // The frame carries any 64 bits; a cell code above CAO_CAO would break every text formatter
+            if (Board.isValid(full) && playerBoard.update(full)) {
+                board = full;
+            }
+        } else if (type == BinaryProtocol.MOVE && message.remaining() >= 1) {
+            int move = message.get() & 0xFF;
+            board = playerBoard.move(move >>> 2, move & 3);
+        }
+        if (board == Board.INVALID) {
+            conn.send("Error: Invalid board frame.");
+            return;
+        }
+
+        publishGameState(new BoardUpdate(username, username + ":", null, board));
+        checkSolved(username, playerBoard);
+    }
+
+    /**
+     * Applies the per-user limit on board changes, each of which is fanned out to every spectator.
+     * A dropped message is reported once, when a socket starts being throttled, so a flooding client
+     * gets no reply for each one.
+     *
+     * @return false if the message must be dropped
+     */
+    private static boolean acquireBoard(ClientSession session, String username) {
+        if (RateLimiter.WS_BOARD.tryAcquire(username)) {
+            if (session.isThrottled()) {
+                session.setThrottled(false);
+            }
+            return true;
+        }
+        if (!session.isThrottled()) {
+            session.setThrottled(true);
+            session.getConnection().send("Error: Rate limit exceeded.");
+        }
+        return false;
+    }
 
-            broadcastGameState("Board state updated:\n" + boardState);
+    /**
+     * Hands a player's game to the leaderboard if their board is solved and the game was not counted yet.
+     */
+    public void checkSolved(String username) {
+        PlayerBoard playerBoard = playerBoards.get(username);
+        if (playerBoard != null) {
+            checkSolved(username, playerBoard);
+        }
+    }
+
+    private void checkSolved(String username, PlayerBoard playerBoard) {
+        if (leaderboard == null) {
+            return;
+        }
+        Leaderboard.Result result = playerBoard.takeSolvedGame(username);
+        if (result != null) {
+            leaderboard.submit(result);
         }
     }
 
     public void setUser(WebSocket conn, String username) {
-        userConnections.put(conn, username);
+        ClientSession session = userConnections.get(conn);
+        if (session == null) {
+            session = userConnections.add(conn);
+        }
+        session.setUsername(username);
+        backplane.publishPresence(username, true);
         broadcastOnlineUsers();
     }
 
+    /**
+     * Sets the store that WebSocket logins with a token are checked against. Only games played
+     * from such logins are ranked; {@code login:<user>} alone still lets a client play and watch.
+     */
+    public void setTokenStore(TokenStore tokenStore) {
+        this.tokenStore = tokenStore;
+    }
+
+    /**
+     * Returns the users online on this node and on the other nodes, each once.
+     */
+    public List<String> getOnlineUsers() {
+        Set<String> users = new LinkedHashSet<>(userConnections.getOnlineUsers());
+        for (Set<String> nodeUsers : remoteUsers.values()) {
+            users.addAll(nodeUsers);
+        }
+        return new ArrayList<>(users);
+    }
+
     public void broadcastOnlineUsers() {
-        String onlineUsers = "Online users: " + String.join(", ", userConnections.values());
-        System.out.println(onlineUsers);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Online users: {}", String.join(", ", getOnlineUsers()));
+        }
     }
 
     public String getUsername(WebSocket conn) {
-        return userConnections.get(conn);
+        return userConnections.getUsername(conn);
     }
 
     public void close() {
         try {
+            outboxFlusher.shutdownNow();
+
             // Close all active WebSocket connections
-            synchronized (userConnections) {
-                for (WebSocket conn : userConnections.keySet()) {
-                    conn.close(1000, "Server shutting down"); // Close with normal closure code
-                }
-                userConnections.clear(); // Clear the connections map
+            for (ClientSession session : userConnections.snapshot()) {
+                session.getConnection().close(1000, "Server shutting down"); // Close with normal closure code
             }
+            userConnections.clear(); // Clear the connection registry
     
             // Stop the WebSocket server
             stop();
-            System.out.println("WebSocket server stopped.");
+            logger.info("WebSocket server stopped.");
         } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println("Error while closing WebSocket server: " + e.getMessage());
+            logger.error("Error while closing WebSocket server", e);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,138 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor setup shared by the HTTP servers.
+ * <p>
+ * {@code -Dklotski.http.executor} selects the mode:
+ * <ul>
+ *   <li>{@code virtual} (default): one virtual thread per request. Needs a Java 21+ runtime;
+ *       older runtimes fall back to {@code pool}.</li>
+ *   <li>{@code pool}: a bounded platform thread pool of {@code klotski.http.poolSize} threads.</li>
+ *   <li>{@code dispatcher}: the HttpServer dispatcher thread handles everything (the old behaviour).</li>
+ * </ul>
+ * {@code -Dklotski.http.maxInFlight} caps concurrent requests per server; extra requests get a 503.
+ */
+public final class HttpExecutors {
+    private static final Logger logger = LoggerFactory.getLogger(HttpExecutors.class);
+    public static final String MODE = System.getProperty("klotski.http.executor", "virtual");
+    public static final int POOL_SIZE = Integer.getInteger("klotski.http.poolSize",
+            Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+    public static final int MAX_IN_FLIGHT = Integer.getInteger("klotski.http.maxInFlight", 256);
+
+    private HttpExecutors() {
+    }
+
+    /**
+     * Rejects requests with 503 once {@link #MAX_IN_FLIGHT} of them are already being handled.
+     */
+    public static class AdmissionFilter extends Filter {
+        private final Semaphore permits;
+
+        public AdmissionFilter(int maxInFlight) {
+            this.permits = new Semaphore(maxInFlight);
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (!permits.tryAcquire()) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                exchange.sendResponseHeaders(503, -1); // Service Unavailable
+                exchange.close();
+                return;
+            }
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                permits.release();
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Limits the number of requests handled at once";
+        }
+    }
+
+    /**
+     * Sets the executor of {@code server} according to {@link #MODE}.
+     *
+     * @return the executor, to be shut down after the server stops, or null in dispatcher mode
+     */
+    public static ExecutorService install(HttpServer server, String name) {
+        ExecutorService executor = create(name);
+        server.setExecutor(executor);
+        logger.info("{} executor: {}", name, describe(executor));
+        return executor;
+    }
+
+    public static ExecutorService create(String name) {
+        switch (MODE) {
+            case "dispatcher":
+                return null;
+            case "pool":
+                return newBoundedPool(name);
+            case "virtual":
+                ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+                if (virtual != null) {
+                    return virtual;
+                }
+                logger.info("Virtual threads need Java 21+, using a bounded pool for {}", name);
+                return newBoundedPool(name);
+            default:
+                throw new IllegalArgumentException("Unknown klotski.http.executor mode: " + MODE);
+        }
+    }
+
+    private static ExecutorService newBoundedPool(String name) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        // The queue is bounded too; HttpServer closes the connection if a request cannot be queued
+        return new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_IN_FLIGHT), threadFactory);
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        // Looked up reflectively because the build still targets Java 17
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static String describe(ExecutorService executor) {
+        if (executor == null) {
+            return "dispatcher thread, max in flight " + MAX_IN_FLIGHT;
+        }
+        if (executor instanceof ThreadPoolExecutor) {
+            return "pool of " + POOL_SIZE + " threads, max in flight " + MAX_IN_FLIGHT;
+        }
+        return "virtual thread per request, max in flight " + MAX_IN_FLIGHT;
+    }
+
+    public static void shutdown(ExecutorService executor) {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
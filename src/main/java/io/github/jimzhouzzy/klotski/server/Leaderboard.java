@@ -0,0 +1,384 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Rankings of solved games per puzzle, by fewest moves and by fastest time.
+ * <p>
+ * A puzzle is one of the classic {@link Solver#OPENINGS}, its mirror image counting as the same puzzle;
+ * games from any other start are not ranked, so made-up starts next to the goal cannot flood the
+ * rankings with one-move puzzles. Only games played from WebSocket logins with a token are submitted
+ * (see {@link GameWebSocketServer#setTokenStore}). Each ranking holds only the best result of each
+ * player and only the top {@code klotski.leaderboard.size} players, kept sorted in a TreeSet, so a
+ * result is placed in O(log n) and reads never sort. The JSON of a puzzle is serialized again when
+ * one of its rankings changes and served as is.
+ * <p>
+ * Results are written to {@code klotski.leaderboard.file} (default {@value #DEFAULT_FILE}) when they
+ * changed, every {@code klotski.leaderboard.saveSeconds} and at shutdown, with a temp file and an
+ * atomic rename.
+ */
+public class Leaderboard implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(Leaderboard.class);
+    public static final int SIZE = Math.max(1, Integer.getInteger("klotski.leaderboard.size", 10));
+    private static final String DEFAULT_FILE = "leaderboard.json";
+    private static final long SAVE_SECONDS = Long.getLong("klotski.leaderboard.saveSeconds", 30);
+    private static final Gson GSON = new Gson();
+
+    private static final Comparator<Result> BY_MOVES = Comparator.comparingInt(Result::getMoves)
+            .thenComparingLong(Result::getMillis)
+            .thenComparingLong(Result::getAchievedAt)
+            .thenComparing(Result::getUsername);
+    private static final Comparator<Result> BY_TIME = Comparator.comparingLong(Result::getMillis)
+            .thenComparingInt(Result::getMoves)
+            .thenComparingLong(Result::getAchievedAt)
+            .thenComparing(Result::getUsername);
+
+    // Puzzle names by canonical starting board
+    private static final Map<Long, String> OPENING_NAMES = new HashMap<>();
+
+    static {
+        for (Map.Entry<String, String> opening : Solver.OPENINGS.entrySet()) {
+            OPENING_NAMES.put(Board.canonical(Board.parse(opening.getValue())), opening.getKey());
+        }
+    }
+
+    private final Path file; // null when results are not persisted
+    private final Map<String, Puzzle> puzzles = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile byte[] allJson; // every puzzle, rebuilt on the first read after a change
+    private volatile long allJsonVersion = -1;
+    private volatile Consumer<String> listener;
+    private volatile boolean dirty;
+    private final ScheduledExecutorService saver;
+
+    /**
+     * One solved game.
+     */
+    public static class Result {
+        private final String username;
+        private final String start; // starting board in the 20-letter format
+        private final int moves;
+        private final long millis;
+        private final long achievedAt;
+
+        public Result(String username, long start, int moves, long millis, long achievedAt) {
+            this.username = username;
+            this.start = SolverHandler.toLetters(start);
+            this.moves = moves;
+            this.millis = millis;
+            this.achievedAt = achievedAt;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public long getStart() {
+            return SolverHandler.parseBoard(start);
+        }
+
+        public int getMoves() {
+            return moves;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public long getAchievedAt() {
+            return achievedAt;
+        }
+    }
+
+    /**
+     * The best results of one ranking, best first.
+     */
+    private static class Ranking {
+        final String kind;
+        final TreeSet<Result> top;
+        final Map<String, Result> byUser = new HashMap<>();
+
+        Ranking(String kind, Comparator<Result> order) {
+            this.kind = kind;
+            this.top = new TreeSet<>(order);
+        }
+
+        /**
+         * Places a result unless the player already has a better one or it does not make the top.
+         *
+         * @return the result's rank starting at 1, or 0 if the ranking did not change
+         */
+        int submit(Result result) {
+            Comparator<? super Result> order = top.comparator();
+            Result previous = byUser.get(result.username);
+            if (previous != null ? order.compare(result, previous) >= 0
+                    : top.size() >= SIZE && order.compare(result, top.last()) >= 0) {
+                return 0;
+            }
+            if (previous != null) {
+                top.remove(previous);
+            }
+            top.add(result);
+            byUser.put(result.username, result);
+            if (top.size() > SIZE) {
+                byUser.remove(top.pollLast().username);
+            }
+            return top.headSet(result).size() + 1; // bounded by SIZE
+        }
+
+        void write(JsonWriter writer) throws IOException {
+            writer.name(kind).beginArray();
+            int rank = 0;
+            for (Result result : top) {
+                writer.beginObject();
+                writer.name("rank").value(++rank);
+                writer.name("username").value(result.username);
+                writer.name("moves").value(result.moves);
+                writer.name("millis").value(result.millis);
+                writer.name("date").value(Instant.ofEpochMilli(result.achievedAt).toString());
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+    }
+
+    /**
+     * Both rankings of one puzzle and their serialized form.
+     */
+    private static class Puzzle {
+        final String name;
+        final Ranking byMoves = new Ranking("moves", BY_MOVES);
+        final Ranking byTime = new Ranking("time", BY_TIME);
+        volatile byte[] json;
+
+        Puzzle(String name) {
+            this.name = name;
+            this.json = serialize();
+        }
+
+        // Called with the puzzle locked
+        byte[] serialize() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8))) {
+                writer.beginObject();
+                writer.name("puzzle").value(name);
+                byMoves.write(writer);
+                byTime.write(writer);
+                writer.endObject();
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // not thrown by an in-memory stream
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    public Leaderboard(Path file) throws IOException {
+        this.file = file;
+        if (file != null && Files.exists(file)) {
+            load();
+        }
+        saver = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "leaderboard-saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (file != null) {
+            saver.scheduleWithFixedDelay(() -> {
+                try {
+                    save();
+                } catch (IOException e) {
+                    logger.error("Failed to save leaderboard", e);
+                }
+            }, SAVE_SECONDS, SAVE_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Opens the leaderboard saved in {@code -Dklotski.leaderboard.file}; an empty value keeps it in memory only.
+     */
+    public static Leaderboard open() throws IOException {
+        String file = System.getProperty("klotski.leaderboard.file", DEFAULT_FILE);
+        return new Leaderboard(file.isEmpty() ? null : Paths.get(file));
+    }
+
+    /**
+     * Sets where rank changes are announced, one text message per change.
+     */
+    public void setListener(Consumer<String> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the name of the puzzle a game started from, or null if the start is not a ranked opening.
+     */
+    public static String puzzleOf(long start) {
+        return OPENING_NAMES.get(Board.canonical(start));
+    }
+
+    /**
+     * Adds a solved game to the rankings of its puzzle and announces the ranks it reached. Games that
+     * did not start from a ranked opening are ignored.
+     */
+    public void submit(Result result) {
+        String name = puzzleOf(result.getStart());
+        if (name == null) {
+            return;
+        }
+        Puzzle puzzle = puzzles.computeIfAbsent(name, Puzzle::new);
+        int movesRank;
+        int timeRank;
+        synchronized (puzzle) {
+            movesRank = puzzle.byMoves.submit(result);
+            timeRank = puzzle.byTime.submit(result);
+            if (movesRank == 0 && timeRank == 0) {
+                return;
+            }
+            puzzle.json = puzzle.serialize();
+        }
+        version.incrementAndGet();
+        dirty = true;
+
+        Consumer<String> target = listener;
+        if (target != null) {
+            StringBuilder message = new StringBuilder("Leaderboard updated:\n").append(name);
+            if (movesRank > 0) {
+                message.append("\nmoves #").append(movesRank).append(' ').append(result.username)
+                        .append(' ').append(result.moves);
+            }
+            if (timeRank > 0) {
+                message.append("\ntime #").append(timeRank).append(' ').append(result.username)
+                        .append(' ').append(result.millis);
+            }
+            target.accept(message.toString());
+        }
+    }
+
+    /**
+     * Increases whenever a ranking changes.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Returns the serialized rankings of one puzzle, or null if nobody has solved it.
+     */
+    public byte[] getJson(String puzzle) {
+        Puzzle entry = puzzles.get(puzzle);
+        return entry == null ? null : entry.json;
+    }
+
+    /**
+     * Returns the serialized rankings of every puzzle as one JSON array.
+     */
+    public byte[] getAllJson() {
+        long current = version.get();
+        byte[] json = allJson;
+        if (json != null && allJsonVersion == current) {
+            return json;
+        }
+        List<String> names = new ArrayList<>(puzzles.keySet());
+        Collections.sort(names);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * names.size() + 2);
+        bytes.write('[');
+        for (String name : names) {
+            if (bytes.size() > 1) {
+                bytes.write(',');
+            }
+            bytes.writeBytes(puzzles.get(name).json);
+        }
+        bytes.write(']');
+        json = bytes.toByteArray();
+        // A change racing this rebuild only leaves an older version cached, rebuilt on the next read
+        allJson = json;
+        allJsonVersion = current;
+        return json;
+    }
+
+    private synchronized void save() throws IOException {
+        if (file == null || !dirty) {
+            return;
+        }
+        dirty = false;
+        List<Result> results = new ArrayList<>();
+        for (Puzzle puzzle : puzzles.values()) {
+            synchronized (puzzle) {
+                // A result can rank in both lists but is written once
+                Set<Result> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (Result result : puzzle.byMoves.top) {
+                    if (seen.add(result)) {
+                        results.add(result);
+                    }
+                }
+                for (Result result : puzzle.byTime.top) {
+                    if (seen.add(result)) {
+                        results.add(result);
+                    }
+                }
+            }
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            GSON.toJson(results, writer);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void load() throws IOException {
+        List<Result> saved;
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            saved = GSON.fromJson(reader, new TypeToken<List<Result>>() {}.getType());
+        } catch (RuntimeException e) {
+            logger.warn("Ignoring unreadable leaderboard file {}: {}", file, e.getMessage());
+            return;
+        }
+        if (saved == null) {
+            return;
+        }
+        for (Result result : saved) {
+            if (result != null && result.username != null && result.getStart() != Board.INVALID) {
+                submit(result);
+            }
+        }
+        dirty = false;
+        logger.info("Loaded leaderboard of {} puzzles from {}", puzzles.size(), file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        saver.shutdownNow();
+        save();
+    }
+}
@@ -0,0 +1,79 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@code GET /leaderboard} returns the rankings of every puzzle, {@code GET /leaderboard?puzzle=<name>}
+ * those of one, e.g. {@code ?puzzle=Heng+Dao+Li+Ma}. Each puzzle lists its top players by fewest
+ * moves and by fastest time. The bodies are serialized by {@link Leaderboard} when a ranking changes,
+ * and the ETag follows its version.
+ */
+public class LeaderboardHandler implements HttpHandler {
+    private static final byte[] PREFIX = "{\"code\":200,\"puzzles\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PUZZLE_PREFIX = "{\"code\":200,\"leaderboard\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NOT_FOUND =
+            "{\"code\":404,\"message\":\"Nobody has solved this puzzle yet\"}".getBytes(StandardCharsets.UTF_8);
+    // Versions restart with the process, so ETags carry the start time as well
+    private static final String ETAG_PREFIX = "\"" + Long.toHexString(System.currentTimeMillis()) + "-";
+
+    private final Leaderboard leaderboard;
+
+    public LeaderboardHandler(Leaderboard leaderboard) {
+        this.leaderboard = leaderboard;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1); // Method not allowed
+            exchange.close();
+            return;
+        }
+        String puzzle = null;
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                if (pair.startsWith("puzzle=")) {
+                    puzzle = URLDecoder.decode(pair.substring("puzzle=".length()), StandardCharsets.UTF_8);
+                }
+            }
+        }
+
+        // Read the version first: a change after it only makes the ETag older than the body
+        String etag = ETAG_PREFIX + leaderboard.getVersion() + "\"";
+        byte[] body = puzzle == null ? leaderboard.getAllJson() : leaderboard.getJson(puzzle);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        if (body == null) {
+            send(exchange, 404, null, NOT_FOUND);
+            return;
+        }
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        send(exchange, 200, puzzle == null ? PREFIX : PUZZLE_PREFIX, body);
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] prefix, byte[] body) throws IOException {
+        int length = body.length + (prefix == null ? 0 : prefix.length + 1);
+        exchange.sendResponseHeaders(status, length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            if (prefix != null) {
+                os.write(prefix);
+            }
+            os.write(body);
+            if (prefix != null) {
+                os.write('}');
+            }
+        }
+    }
+}
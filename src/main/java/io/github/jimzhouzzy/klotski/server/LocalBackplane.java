@@ -0,0 +1,108 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * {@link Backplane} between nodes in one JVM, which share a {@link Hub} and call each other's listeners
+ * directly. A node on a hub of its own, the default, is a single server with nothing to share.
+ */
+public class LocalBackplane implements Backplane {
+    private static final AtomicInteger NODES = new AtomicInteger();
+
+    private final Hub hub;
+    private final String nodeId = "local-" + NODES.incrementAndGet();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Set<String> onlineUsers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The nodes that see each other's updates.
+     */
+    public static class Hub {
+        private final List<LocalBackplane> nodes = new CopyOnWriteArrayList<>();
+    }
+
+    public LocalBackplane() {
+        this(new Hub());
+    }
+
+    public LocalBackplane(Hub hub) {
+        this.hub = hub;
+        hub.nodes.add(this);
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Adds a listener and tells it who is online on the other nodes already.
+     */
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        for (LocalBackplane node : hub.nodes) {
+            if (node != this) {
+                for (String username : node.onlineUsers) {
+                    listener.onPresence(node.nodeId, username, true);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void publishBoard(BoardUpdate update) {
+        forEachOther(listener -> listener.onBoard(update.getUsername(), update.getHeader(), update.getRows(),
+                update.getBoard()));
+    }
+
+    @Override
+    public void publishPresence(String username, boolean online) {
+        if (online) {
+            onlineUsers.add(username);
+        } else {
+            onlineUsers.remove(username);
+        }
+        forEachOther(listener -> listener.onPresence(nodeId, username, online));
+    }
+
+    @Override
+    public void publishToken(String hash, String username, long expiryTime) {
+        forEachOther(listener -> listener.onToken(hash, username, expiryTime));
+    }
+
+    @Override
+    public void publishTokenRevoked(String hash) {
+        forEachOther(listener -> listener.onTokenRevoked(hash));
+    }
+
+    @Override
+    public void publishUser(String username, String password) {
+        forEachOther(listener -> listener.onUser(username, password));
+    }
+
+    private void forEachOther(Consumer<Listener> call) {
+        for (LocalBackplane node : hub.nodes) {
+            if (node != this) {
+                for (Listener listener : node.listeners) {
+                    call.accept(listener);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        hub.nodes.remove(this);
+        for (LocalBackplane node : hub.nodes) {
+            for (Listener listener : node.listeners) {
+                listener.onNodeDown(nodeId);
+            }
+        }
+    }
+}
@@ -0,0 +1,718 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Segmented append-only log of game saves.
+ * <p>
+ * Every put or delete appends one record to the active segment file; an in-memory index maps
+ * (user, slot) to the record's location, so a superseded autosave or a save dropped by retention
+ * simply becomes dead space. Writers share fsyncs (group commit): a background thread forces
+ * the log and wakes every writer whose record is now durable. Sealed segments full of dead
+ * records are compacted in the background by copying their live records to the active segment.
+ * <p>
+ * The index is checkpointed to {@value #CHECKPOINT_FILE} on close, after compaction and
+ * periodically, so opening the store reads that file and only replays the log written after it.
+ * <p>
+ * Record layout: {@code [length:int][crc32:int][op:byte][user:utf][slot:utf][date:utf][autoSave:boolean]
+ * [payloadLength:int][payload]}, where length and crc cover everything after the crc and the payload
+ * is the save as JSON. Deletes carry an empty date and payload.
+ */
+public class LogSaveStore implements SaveStore {
+    private static final Logger logger = LoggerFactory.getLogger(LogSaveStore.class);
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "index.checkpoint";
+    private static final int CHECKPOINT_MAGIC = 0x4B4C4958; // "KLIX"
+    private static final long SEGMENT_BYTES = Long.getLong("klotski.saves.segmentBytes", 16L << 20);
+    private static final boolean FSYNC = Boolean.parseBoolean(System.getProperty("klotski.saves.fsync", "true"));
+    private static final long COMPACTION_INTERVAL_SECONDS = Long.getLong("klotski.saves.compactionSeconds", 300);
+    private static final long COMPACTION_MIN_DEAD_BYTES = Long.getLong("klotski.saves.compactionMinDeadBytes", 1L << 20);
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+    private static final int HEADER_BYTES = 8;
+    private static final byte DELETE = 2;
+    private static final byte PUT = 3;
+
+    private static final Gson GSON = new Gson();
+    private final Path directory;
+    private final Map<String, Map<String, Location>> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    private final Object appendLock = new Object();
+    private Segment active; // guarded by appendLock
+    private long appendedRecords; // guarded by appendLock
+    private long checkpointedRecords; // guarded by appendLock
+
+    private final Object syncLock = new Object();
+    private long syncRequested; // guarded by syncLock
+    private long syncedRecords; // guarded by syncLock
+    private volatile boolean closed;
+    private volatile boolean closing; // set first by close(), stops a compaction between records
+    private final Thread syncer;
+    private final ScheduledExecutorService compactor;
+
+    private static class Location {
+        final Segment segment;
+        final long offset;
+        final int length;
+        final String date;
+        final boolean autoSave;
+
+        Location(Segment segment, long offset, int length, String date, boolean autoSave) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.date = date;
+            this.autoSave = autoSave;
+        }
+
+        Location movedTo(Segment segment, long offset) {
+            return new Location(segment, offset, length, date, autoSave);
+        }
+    }
+
+    private static class Segment {
+        final long id;
+        final Path path;
+        final FileChannel channel;
+        final AtomicLong liveBytes = new AtomicLong();
+        volatile long size;
+
+        Segment(long id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    private static class Record {
+        byte op;
+        String username;
+        String slot;
+        String date;
+        boolean autoSave;
+        byte[] payload;
+    }
+
+    public LogSaveStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        ids.sort(null);
+        for (long id : ids) {
+            segments.put(id, new Segment(id, segmentPath(id)));
+        }
+
+        long[] replayFrom = loadCheckpoint();
+        if (replayFrom == null) {
+            index.clear();
+            for (Segment segment : segments.values()) {
+                segment.liveBytes.set(0);
+            }
+            replayFrom = new long[] {0, 0};
+        }
+        for (Segment segment : segments.tailMap(replayFrom[0]).values()) {
+            replay(segment, segment.id == replayFrom[0] ? replayFrom[1] : 0);
+        }
+        active = segments.isEmpty() ? openSegment(1) : segments.lastEntry().getValue();
+
+        syncer = new Thread(this::syncLoop, "save-log-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "save-log-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::maintain,
+                COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private Path segmentPath(long id) {
+        return directory.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private Segment openSegment(long id) throws IOException {
+        Segment segment = new Segment(id, segmentPath(id));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    // ---------------------------------------------------------------- SaveStore
+
+    @Override
+    public void put(GameSave save) throws IOException {
+        byte[] payload = GSON.toJson(save).getBytes(StandardCharsets.UTF_8);
+        Record record = new Record();
+        record.op = PUT;
+        record.username = save.getUsername();
+        record.slot = SaveStore.slotOf(save);
+        record.date = save.getDate() == null ? "" : save.getDate();
+        record.autoSave = save.getAutoSave();
+        record.payload = payload;
+        append(record);
+    }
+
+    @Override
+    public void delete(String username, String slot) throws IOException {
+        Map<String, Location> slots = index.get(username);
+        if (slots == null || !slots.containsKey(slot)) {
+            return;
+        }
+        Record record = new Record();
+        record.op = DELETE;
+        record.username = username;
+        record.slot = slot;
+        record.date = "";
+        record.payload = new byte[0];
+        append(record);
+    }
+
+    @Override
+    public List<SaveInfo> list(String username) {
+        List<SaveInfo> saves = new ArrayList<>();
+        Map<String, Location> slots = index.get(username);
+        if (slots == null) {
+            return saves;
+        }
+        for (Map.Entry<String, Location> slot : slots.entrySet()) {
+            Location location = slot.getValue();
+            saves.add(new SaveInfo(username, slot.getKey(), location.date, location.autoSave));
+        }
+        return saves;
+    }
+
+    @Override
+    public GameSave read(String username, String slot) throws IOException {
+        // A record can move while we read it (compaction), so look it up again if its segment is gone
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Map<String, Location> slots = index.get(username);
+            Location location = slots == null ? null : slots.get(slot);
+            if (location == null) {
+                return null;
+            }
+            try {
+                Record record = readRecord(location);
+                return GSON.fromJson(new String(record.payload, StandardCharsets.UTF_8), GameSave.class);
+            } catch (ClosedChannelException e) {
+                // retry with the new location
+            }
+        }
+        throw new IOException("Save " + username + "/" + slot + " kept moving while being read");
+    }
+
+    @Override
+    public Set<String> users() {
+        return new HashSet<>(index.keySet());
+    }
+
+    @Override
+    public List<String> recentUsers(int limit) {
+        // By save date: compaction moves records, so their place in the log says nothing about their age
+        List<Map.Entry<String, Long>> latest = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Location>> user : index.entrySet()) {
+            long newest = Long.MIN_VALUE;
+            boolean any = false;
+            for (Location location : user.getValue().values()) {
+                newest = Math.max(newest, SaveInfo.parseEpochMillis(location.date));
+                any = true;
+            }
+            if (any) {
+                latest.add(Map.entry(user.getKey(), newest));
+            }
+        }
+        latest.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+
+        List<String> users = new ArrayList<>();
+        for (int i = 0; i < latest.size() && i < limit; i++) {
+            users.add(latest.get(i).getKey());
+        }
+        return users;
+    }
+
+    /**
+     * Copies every save of another store into this one.
+     *
+     * @return the number of saves copied
+     */
+    public int importFrom(SaveStore source) throws IOException {
+        int count = 0;
+        for (String username : source.users()) {
+            for (GameSave save : source.load(username)) {
+                put(save);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // ---------------------------------------------------------------- writing
+
+    private static byte[] encode(Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(record.payload.length + 96);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // length, filled in below
+        out.writeInt(0); // crc, filled in below
+        out.writeByte(record.op);
+        out.writeUTF(record.username);
+        out.writeUTF(record.slot);
+        out.writeUTF(record.date);
+        out.writeBoolean(record.autoSave);
+        out.writeInt(record.payload.length);
+        out.write(record.payload);
+        out.flush();
+
+        byte[] encoded = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(encoded, HEADER_BYTES, encoded.length - HEADER_BYTES);
+        ByteBuffer header = ByteBuffer.wrap(encoded, 0, HEADER_BYTES);
+        header.putInt(encoded.length - HEADER_BYTES);
+        header.putInt((int) crc.getValue());
+        return encoded;
+    }
+
+    /**
+     * Appends a record, updates the index and waits until the record is durable.
+     */
+    private void append(Record record) throws IOException {
+        byte[] encoded = encode(record);
+        long sequence;
+        synchronized (appendLock) {
+            if (active.size >= SEGMENT_BYTES) {
+                rollSegment();
+            }
+            long offset = write(encoded);
+            applyToIndex(record, new Location(active, offset, encoded.length, record.date, record.autoSave));
+            sequence = ++appendedRecords;
+        }
+        awaitSync(sequence);
+    }
+
+    // Caller holds appendLock. Returns the offset the record was written at in the active segment.
+    private long write(byte[] record) throws IOException {
+        if (closed) {
+            throw new IOException("Save store is closed");
+        }
+        Segment segment = active;
+        long offset = segment.size;
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += segment.channel.write(buffer, position);
+        }
+        segment.size = position;
+        return offset;
+    }
+
+    // Caller holds appendLock
+    private void rollSegment() throws IOException {
+        if (FSYNC) {
+            active.channel.force(false); // records in sealed segments are durable before new ones are written
+        }
+        active = openSegment(active.id + 1);
+    }
+
+    private void applyToIndex(Record record, Location location) {
+        Map<String, Location> slots = index.computeIfAbsent(record.username, k -> new ConcurrentHashMap<>());
+        Location previous;
+        if (record.op == PUT) {
+            location.segment.liveBytes.addAndGet(location.length);
+            previous = slots.put(record.slot, location);
+        } else {
+            previous = slots.remove(record.slot);
+            if (slots.isEmpty()) {
+                index.remove(record.username, slots);
+            }
+        }
+        if (previous != null) {
+            previous.segment.liveBytes.addAndGet(-previous.length);
+        }
+    }
+
+    private void awaitSync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (sequence > syncRequested) {
+                syncRequested = sequence;
+                syncLock.notifyAll();
+            }
+            boolean interrupted = false;
+            while (syncedRecords < sequence && !closed) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (syncedRecords < sequence) {
+                throw new IOException("Save store closed before the save was written");
+            }
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            synchronized (syncLock) {
+                while (syncRequested == syncedRecords && !closed) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+            }
+
+            // Every writer that appended before this point shares the next fsync
+            long target;
+            Segment segment;
+            synchronized (appendLock) {
+                target = appendedRecords;
+                segment = active;
+            }
+            try {
+                if (FSYNC) {
+                    segment.channel.force(false);
+                }
+            } catch (IOException e) {
+                logger.error("Failed to sync save log", e);
+            }
+            synchronized (syncLock) {
+                syncedRecords = Math.max(syncedRecords, target);
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- reading
+
+    private Record readRecord(Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.length);
+        readFully(location.segment, buffer, location.offset);
+        return decode(buffer.array());
+    }
+
+    private static void readFully(Segment segment, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (segment.channel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of save log " + segment.path);
+            }
+        }
+    }
+
+    private static Record decode(byte[] encoded) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(encoded, HEADER_BYTES, encoded.length - HEADER_BYTES));
+        Record record = new Record();
+        record.op = in.readByte();
+        if (record.op != PUT && record.op != DELETE) {
+            throw new IOException("Unknown save log record type " + record.op);
+        }
+        record.username = in.readUTF();
+        record.slot = in.readUTF();
+        record.date = in.readUTF();
+        record.autoSave = in.readBoolean();
+        record.payload = new byte[in.readInt()];
+        in.readFully(record.payload);
+        return record;
+    }
+
+    /**
+     * Applies the records of one segment from {@code start} on to the index.
+     * A torn record at the end (a crash mid-write) is cut off.
+     */
+    private void replay(Segment segment, long start) throws IOException {
+        long position = start;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (position + HEADER_BYTES <= segment.size) {
+            header.clear();
+            readFully(segment, header, position);
+            header.flip();
+            int length = header.getInt();
+            int expectedCrc = header.getInt();
+            if (length <= 0 || position + HEADER_BYTES + length > segment.size) {
+                break;
+            }
+
+            byte[] encoded = new byte[HEADER_BYTES + length];
+            readFully(segment, ByteBuffer.wrap(encoded, HEADER_BYTES, length), position + HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(encoded, HEADER_BYTES, length);
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+            Record record = decode(encoded);
+            applyToIndex(record, new Location(segment, position, encoded.length, record.date, record.autoSave));
+            position += encoded.length;
+        }
+        if (position < segment.size) {
+            logger.warn("Truncating damaged save log {} at byte {}", segment.path, position);
+            segment.channel.truncate(position);
+            segment.size = position;
+        }
+    }
+
+    // ---------------------------------------------------------------- checkpoints
+
+    /**
+     * Writes the index and the log position it covers, atomically replacing the previous checkpoint.
+     */
+    private void writeCheckpoint() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        synchronized (appendLock) {
+            if (checkpointedRecords == appendedRecords && Files.exists(directory.resolve(CHECKPOINT_FILE))) {
+                return;
+            }
+            out.writeLong(active.id);
+            out.writeLong(active.size);
+            for (Map.Entry<String, Map<String, Location>> user : index.entrySet()) {
+                for (Map.Entry<String, Location> slot : user.getValue().entrySet()) {
+                    Location location = slot.getValue();
+                    out.writeBoolean(true);
+                    out.writeUTF(user.getKey());
+                    out.writeUTF(slot.getKey());
+                    out.writeUTF(location.date);
+                    out.writeBoolean(location.autoSave);
+                    out.writeLong(location.segment.id);
+                    out.writeLong(location.offset);
+                    out.writeInt(location.length);
+                }
+            }
+            out.writeBoolean(false);
+            checkpointedRecords = appendedRecords;
+        }
+        out.flush();
+
+        byte[] body = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer file = ByteBuffer.allocate(8 + body.length);
+        file.putInt(CHECKPOINT_MAGIC).putInt((int) crc.getValue()).put(body);
+
+        Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            file.flip();
+            while (file.hasRemaining()) {
+                channel.write(file);
+            }
+            if (FSYNC) {
+                channel.force(false);
+            }
+        }
+        Files.move(temp, directory.resolve(CHECKPOINT_FILE),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Loads the checkpointed index.
+     *
+     * @return the segment id and offset to replay from, or null if there is no usable checkpoint
+     */
+    private long[] loadCheckpoint() {
+        Path path = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            byte[] file = Files.readAllBytes(path);
+            ByteBuffer header = ByteBuffer.wrap(file);
+            if (file.length < 8 || header.getInt() != CHECKPOINT_MAGIC) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(file, 8, file.length - 8);
+            if (header.getInt() != (int) crc.getValue()) {
+                return null;
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(file, 8, file.length - 8));
+            long segmentId = in.readLong();
+            long offset = in.readLong();
+            Segment replayStart = segments.get(segmentId);
+            if (replayStart == null || replayStart.size < offset) {
+                return null;
+            }
+            while (in.readBoolean()) {
+                Record record = new Record();
+                record.op = PUT;
+                record.username = in.readUTF();
+                record.slot = in.readUTF();
+                record.date = in.readUTF();
+                record.autoSave = in.readBoolean();
+                Segment segment = segments.get(in.readLong());
+                long recordOffset = in.readLong();
+                int length = in.readInt();
+                if (segment == null) {
+                    return null; // compacted away after the checkpoint was written
+                }
+                applyToIndex(record, new Location(segment, recordOffset, length, record.date, record.autoSave));
+            }
+            return new long[] {segmentId, offset};
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable save index checkpoint: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    // ---------------------------------------------------------------- compaction
+
+    private void maintain() {
+        if (closing) {
+            return;
+        }
+        try {
+            compact();
+            writeCheckpoint();
+        } catch (IOException | RuntimeException e) {
+            logger.error("Save log maintenance failed", e);
+        }
+    }
+
+    /**
+     * Copies the live records of every sealed segment into the active one and deletes the
+     * sealed segments, dropping superseded autosaves, deleted saves and their tombstones.
+     * Runs only once enough dead space has built up.
+     */
+    public void compact() throws IOException {
+        long totalBytes = 0;
+        long liveBytes = 0;
+        for (Segment segment : segments.values()) {
+            totalBytes += segment.size;
+            liveBytes += segment.liveBytes.get();
+        }
+        long deadBytes = totalBytes - liveBytes;
+        if (deadBytes < COMPACTION_MIN_DEAD_BYTES || deadBytes * 2 < totalBytes) {
+            return;
+        }
+
+        List<Segment> sealed = new ArrayList<>();
+        synchronized (appendLock) {
+            rollSegment();
+            sealed.addAll(segments.headMap(active.id).values());
+        }
+
+        if (!copyLiveRecords(new HashSet<>(sealed))) {
+            // The copies made so far are live in the active segment; the sealed ones stay until next time
+            logger.info("Save log compaction stopped, the store is closing");
+            return;
+        }
+        synchronized (appendLock) {
+            if (FSYNC) {
+                active.channel.force(false); // copies are durable before the originals go away
+            }
+        }
+        writeCheckpoint();
+        // Oldest first, so a crash part way never leaves a put without its later delete
+        for (Segment segment : sealed) {
+            segments.remove(segment.id);
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        }
+        logger.info("Compacted save log: {} segments, {} dead bytes dropped", sealed.size(), deadBytes);
+    }
+
+    /**
+     * @return false if the store started closing before every record was copied
+     */
+    private boolean copyLiveRecords(Set<Segment> sealed) throws IOException {
+        for (Map.Entry<String, Map<String, Location>> user : index.entrySet()) {
+            for (Map.Entry<String, Location> slot : user.getValue().entrySet()) {
+                if (closing) {
+                    return false;
+                }
+                Location location = slot.getValue();
+                if (!sealed.contains(location.segment)) {
+                    continue;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(location.length);
+                readFully(location.segment, buffer, location.offset);
+                synchronized (appendLock) {
+                    // Skip the copy if the save was replaced or deleted while we were reading it
+                    if (user.getValue().get(slot.getKey()) != location) {
+                        continue;
+                    }
+                    long offset = write(buffer.array());
+                    Location copy = location.movedTo(active, offset);
+                    active.liveBytes.addAndGet(copy.length);
+                    user.getValue().put(slot.getKey(), copy);
+                    location.segment.liveBytes.addAndGet(-location.length);
+                    appendedRecords++;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Interrupting the compactor would close the segment channels under it, so let it stop by itself
+        closing = true;
+        compactor.shutdown();
+        try {
+            if (!compactor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Save log compaction still running after {} seconds, closing anyway", CLOSE_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (appendLock) {
+            if (FSYNC && active != null) {
+                active.channel.force(false);
+            }
+            synchronized (syncLock) {
+                syncedRecords = appendedRecords;
+                closed = true;
+                syncLock.notifyAll();
+            }
+        }
+        writeCheckpoint();
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+    }
+}
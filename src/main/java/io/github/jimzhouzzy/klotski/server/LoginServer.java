@@ -1,61 +1,100 @@
 package io.github.jimzhouzzy.klotski.server;
 
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import org.java_websocket.WebSocket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class LoginServer {
+    private static final Logger logger = LoggerFactory.getLogger(LoginServer.class);
     private static final String USER_DATABASE_FILE = "userDatabase.json";
+    // Overridden to run several nodes on one host
+    private static final int HTTP_PORT = Integer.getInteger("klotski.http.port", 8001);
+    private static final int WS_PORT = Integer.getInteger("klotski.ws.port", 8002);
+    private static final int WEB_PORT = Integer.getInteger("klotski.web.port", 8013);
     public static final Map<String, String> userDatabase = new ConcurrentHashMap<>();
-    private static final Gson gson = new Gson();
+    private static UserStore userStore;
     private static GameWebSocketServer gameWebSocketServer;
-    private static final Map<String, TokenInfo> tokenDatabase = new ConcurrentHashMap<>();
+    private static TokenStore tokenStore;
+    private static PasswordHasher passwordHasher;
+    private static Leaderboard leaderboard;
+    private static Backplane backplane;
+    private static AsyncLogStream logStream; // null when logging is synchronous
 
-    private static class TokenInfo {
-        String username;
-        long expiryTime;
+    public static void main(String[] args) throws IOException {
+        // Log through a background writer so request threads never block on the console
+        logStream = AsyncLogStream.install();
 
-        TokenInfo(String username, long expiryTime) {
-            this.username = username;
-            this.expiryTime = expiryTime;
-        }
-    }
+        // Load user database from its snapshot and log
+        userStore = new UserStore(Paths.get(USER_DATABASE_FILE), userDatabase);
+        tokenStore = TokenStore.open();
+        passwordHasher = new PasswordHasher();
+        leaderboard = Leaderboard.open();
 
-    public static void main(String[] args) throws IOException {
-        // Load user database from JSON file
-        loadUserDatabase();
+        // Share boards, online users, tokens and users with the other nodes, if there are any
+        backplane = Backplane.open();
+        tokenStore.setBackplane(backplane);
+        backplane.addListener(new Backplane.Listener() {
+            @Override
+            public void onUser(String username, String password) {
+                // Only hashes travel between nodes, a plaintext one would be a password anyone could log in with
+                if (!validUsername(username) || !PasswordHasher.isHash(password)) {
+                    logger.warn("Ignoring user {} from another node: not a valid user and password hash", username);
+                    return;
+                }
+                try {
+                    userStore.putReplica(username, password);
+                } catch (IOException e) {
+                    logger.error("Failed to save user {} from another node", username, e);
+                }
+            }
+        });
 
         // Create WebSocket server
-        gameWebSocketServer = new GameWebSocketServer(8002);
+        gameWebSocketServer = new GameWebSocketServer(WS_PORT, leaderboard, backplane);
+        gameWebSocketServer.setTokenStore(tokenStore);
         gameWebSocketServer.start();
 
         // Create HTTP server
-        HttpServer server = HttpServer.create(new InetSocketAddress(8001), 0);
-        server.createContext("/login", new LoginHandler());
-        server.createContext("/signup", new SignupHandler());
-        server.createContext("/gameSave", new GameSaveHandler());
-        server.setExecutor(null); // Use default executor
+        HttpServer server = HttpServer.create(new InetSocketAddress(HTTP_PORT), 0);
+        HttpExecutors.AdmissionFilter admission = new HttpExecutors.AdmissionFilter(HttpExecutors.MAX_IN_FLIGHT);
+        createContext(server, "/login", new LoginHandler(), RateLimiter.LOGIN, admission);
+        createContext(server, "/signup", new SignupHandler(), RateLimiter.SIGNUP, admission);
+        createContext(server, "/gameSave", new GameSaveHandler(gameWebSocketServer), RateLimiter.GAME_SAVE, admission,
+                "/gameSave/uploadSave", "/gameSave/getSaves");
+        createContext(server, "/solver", new SolverHandler(), RateLimiter.SOLVER, admission,
+                "/solver/distance", "/solver/hint");
+        createContext(server, "/leaderboard", new LeaderboardHandler(leaderboard), RateLimiter.READ, admission);
+        createContext(server, "/replay", new ReplayHandler(gameWebSocketServer), RateLimiter.READ, admission);
+        // Not behind the admission limit, so the server can still be observed when it is saturated
+        server.createContext("/metrics", new MetricsHandler());
+        Metrics.gauge("klotski_ws_connections", "Open WebSocket connections", "",
+                gameWebSocketServer.userConnections::size);
+        gameWebSocketServer.registerOutboxMetrics();
+        ExecutorService executor = HttpExecutors.install(server, "login-http");
         server.start();
-        System.out.println("Server started on port 8001");
+        logger.info("Server started on port {}", HTTP_PORT);
 
         // Create WebServer for serving static files
-        WebServer webServer = new WebServer(8013);
+        WebServer webServer = new WebServer(WEB_PORT);
         
         // Add shutdown hook to clean up resources
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println("Shutting down servers...");
+            logger.info("Shutting down servers...");
 
             // Stop the WebSocket server
             if (gameWebSocketServer != null) {
@@ -65,6 +104,35 @@ public class LoginServer {
             // Stop the HTTP server
             if (server != null) {
                 server.stop(0);
+                HttpExecutors.shutdown(executor);
+            }
+
+            passwordHasher.close();
+
+            try {
+                backplane.close();
+            } catch (IOException e) {
+                logger.error("Failed to close backplane", e);
+            }
+
+            // Flush and close the game save store
+            GameSaveHandler.closeStore();
+
+            // Checkpoint the user database, save the tokens and the leaderboard
+            try {
+                userStore.close();
+            } catch (IOException e) {
+                logger.error("Failed to close user database", e);
+            }
+            try {
+                tokenStore.close();
+            } catch (IOException e) {
+                logger.error("Failed to save tokens", e);
+            }
+            try {
+                leaderboard.close();
+            } catch (IOException e) {
+                logger.error("Failed to save leaderboard", e);
             }
 
             // Stop the WebServer
@@ -72,27 +140,27 @@ public class LoginServer {
                 webServer.close();
             }
 
-            System.out.println("All servers shut down successfully.");
-        }));
-    }
-
-    private static void loadUserDatabase() {
-        try (FileReader reader = new FileReader(USER_DATABASE_FILE)) {
-            Map<String, String> data = gson.fromJson(reader, new TypeToken<Map<String, String>>() {}.getType());
-            if (data != null) {
-                userDatabase.putAll(data);
+            logger.info("All servers shut down successfully.");
+            if (logStream != null) {
+                try {
+                    logStream.awaitDrained(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
             }
-        } catch (IOException e) {
-            System.out.println("No existing user database found. Starting fresh.");
-        }
+        }));
     }
 
-    private static void saveUserDatabase() {
-        try (FileWriter writer = new FileWriter(USER_DATABASE_FILE)) {
-            gson.toJson(userDatabase, writer);
-        } catch (IOException e) {
-            System.err.println("Failed to save user database: " + e.getMessage());
-        }
+    /**
+     * Adds an API context whose requests are timed per route, then pass the rate limit of their
+     * address and the admission limit.
+     */
+    private static void createContext(HttpServer server, String path, HttpHandler handler, RateLimiter.Limit limit,
+                                      Filter admission, String... routes) {
+        HttpContext context = server.createContext(path, handler);
+        context.getFilters().add(new Metrics.HttpFilter("login", path, routes));
+        context.getFilters().add(new RateLimiter.HttpFilter(limit));
+        context.getFilters().add(admission);
     }
 
     static class LoginHandler implements HttpHandler {
@@ -100,27 +168,16 @@ public class LoginServer {
         public void handle(HttpExchange exchange) throws IOException {
             if ("POST".equals(exchange.getRequestMethod())) {
                 // Parse request body
-                String requestBody = new String(exchange.getRequestBody().readAllBytes());
-                String[] parts = requestBody.split("&");
-                String username = null, password = null, token = null;
-                for (String part : parts) {
-                    String[] keyValue = part.split("=");
-                    if (keyValue[0].equals("username")) {
-                        username = keyValue[1];
-                    } else if (keyValue[0].equals("password")) {
-                        password = keyValue[1];
-                    } else if (keyValue[0].equals("token")) {
-                        token = keyValue[1];
-                    }
-                }
+                Map<String, String> form = parseForm(new String(exchange.getRequestBody().readAllBytes()));
+                String username = form.get("username"), password = form.get("password"), token = form.get("token");
     
                 String response;
                 if (token != null) {
                     // Token-based login
-                    String validatedUsername = validateToken(token);
+                    String validatedUsername = tokenStore.validate(token);
                     if (validatedUsername != null) {
                         response = "success:" + token;
-                        System.out.println("Token login successful for user: " + validatedUsername);
+                        logger.debug("Token login successful for user: {}", validatedUsername);
                     } else {
                         response = "failure: invalid or expired token";
                     }
@@ -128,15 +185,27 @@ public class LoginServer {
                     // Username/password login
                     if (!basicValidation(username, password)) {
                         response = "failure: invalid input";
+                    } else if (!RateLimiter.LOGIN_USER.tryAcquire(username)) {
+                        // Checked before the hash is computed, on top of the limit per address
+                        RateLimiter.reject(exchange);
+                        return;
                     } else {
-                        boolean success = userDatabase.containsKey(username) && userDatabase.get(username).equals(password);
+                        String stored = userDatabase.get(username);
+                        boolean success;
+                        try {
+                            success = passwordHasher.verify(username, password, stored);
+                        } catch (RejectedExecutionException e) {
+                            sendBusy(exchange);
+                            return;
+                        }
                         if (success) {
+                            if (PasswordHasher.needsRehash(stored)) {
+                                rehash(username, password, stored);
+                            }
                             // Generate token
-                            String newToken = generateToken();
-                            long expiryTime = System.currentTimeMillis() + 30L * 24 * 60 * 60 * 1000; // 1 month
-                            tokenDatabase.put(newToken, new TokenInfo(username, expiryTime));
+                            String newToken = tokenStore.issue(username);
                             response = "success:" + newToken;
-                            System.out.println("User " + username + " logged in with token: " + newToken);
+                            logger.debug("User {} logged in with a new token", username);
                         } else {
                             response = "failure";
                         }
@@ -159,30 +228,34 @@ public class LoginServer {
         public void handle(HttpExchange exchange) throws IOException {
             if ("POST".equals(exchange.getRequestMethod())) {
                 // Parse request body
-                String requestBody = new String(exchange.getRequestBody().readAllBytes());
-                String[] parts = requestBody.split("&");
-                String username = null, password = null;
-                for (String part : parts) {
-                    String[] keyValue = part.split("=");
-                    if (keyValue[0].equals("username")) {
-                        username = keyValue[1];
-                    } else if (keyValue[0].equals("password")) {
-                        password = keyValue[1];
-                    }
-                }
+                Map<String, String> form = parseForm(new String(exchange.getRequestBody().readAllBytes()));
+                String username = form.get("username"), password = form.get("password");
 
                 // Perform basic validation
                 String response;
                 if (!basicValidation(username, password)) {
                     response = "failure: invalid input";
-                } else if (userDatabase.containsKey(username)) {
-                    // Check if user already exists
-                    response = "failure: user already exists";
                 } else {
-                    // Add new user and save to database
-                    userDatabase.put(username, password);
-                    saveUserDatabase();
-                    response = "success";
+                    // Add new user and log it to the database, unless the name is taken
+                    try {
+                        if (userDatabase.containsKey(username)) {
+                            response = "failure: user already exists";
+                        } else {
+                            String hashed = passwordHasher.hash(password);
+                            if (userStore.putIfAbsent(username, hashed)) {
+                                backplane.publishUser(username, hashed);
+                                response = "success";
+                            } else {
+                                response = "failure: user already exists";
+                            }
+                        }
+                    } catch (RejectedExecutionException e) {
+                        sendBusy(exchange);
+                        return;
+                    } catch (IOException e) {
+                        logger.error("Failed to save user database", e);
+                        response = "failure: server error";
+                    }
                 }
 
                 // Send response
@@ -196,40 +269,75 @@ public class LoginServer {
         }
     }
 
+    /**
+     * Tells the client to retry because the password hashing pool is saturated.
+     */
+    private static void sendBusy(HttpExchange exchange) throws IOException {
+        byte[] response = "failure: server busy".getBytes();
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        exchange.sendResponseHeaders(503, response.length); // Service Unavailable
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
+
+    /**
+     * Replaces a plaintext or outdated password hash after a successful login, in the background.
+     */
+    private static void rehash(String username, String password, String stored) {
+        passwordHasher.rehashLater(password, hashed -> {
+            try {
+                // Skipped if the password changed in the meantime
+                if (userStore.replace(username, stored, hashed)) {
+                    backplane.publishUser(username, hashed);
+                    logger.debug("Rehashed the password of {}", username);
+                }
+            } catch (IOException e) {
+                logger.error("Failed to save rehashed password of {}", username, e);
+            }
+        });
+    }
+
+    /**
+     * Parses a {@code key=value&key=value} request body. A key without a value is left out.
+     */
+    static Map<String, String> parseForm(String body) {
+        Map<String, String> form = new HashMap<>();
+        for (String part : body.split("&")) {
+            String[] keyValue = part.split("=");
+            if (keyValue.length >= 2) {
+                form.put(keyValue[0], keyValue[1]);
+            }
+        }
+        return form;
+    }
+
     private static boolean basicValidation(String username, String password) {
-        // Check if the username is valid (not empty)
-        if (username == null || username.isEmpty()) {
+        if (!validUsername(username)) {
             return false;
         }
         // Check if the password is valid (not empty)
         if (password == null || password.isEmpty()) {
             return false;
         }
-        // Check if the username is too long
-        if (username.length() > 20) {
-            return false;
-        }
         // Check if the password is too long
         if (password.length() > 20) {
             return false;
         }
-        // Check if the username contains invalid characters
-        if (!username.matches("[a-zA-Z0-9_]+")) {
-            return false;
-        }
 
         return true;
     }
 
-    private static String generateToken() {
-        return java.util.UUID.randomUUID().toString();
-    }
-
-    private static String validateToken(String token) {
-        TokenInfo tokenInfo = tokenDatabase.get(token);
-        if (tokenInfo != null && tokenInfo.expiryTime > System.currentTimeMillis()) {
-            return tokenInfo.username; // 返回用户名
+    static boolean validUsername(String username) {
+        // Check if the username is valid (not empty)
+        if (username == null || username.isEmpty()) {
+            return false;
         }
-        return null; // Token 无效或已过期
+        // Check if the username is too long
+        if (username.length() > 20) {
+            return false;
+        }
+        // Check if the username contains invalid characters
+        return username.matches("[a-zA-Z0-9_]+");
     }
 }
@@ -0,0 +1,178 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Memory-mapped views of the web files too large for {@link AssetCache}.
+ * <p>
+ * A file is mapped once and the mapping is shared by every request for it; each request writes
+ * from its own duplicate of the buffer, so concurrent requests and byte ranges do not interfere.
+ * A file that changed on disk (size or modification time) is mapped again on the next request.
+ * Files above {@code klotski.web.mmapMaxBytes} are not mapped but copied with
+ * {@link FileChannel#transferTo}.
+ */
+public class MappedFileCache {
+    private static final long MMAP_MAX_BYTES = Long.getLong("klotski.web.mmapMaxBytes", 256L << 20);
+    private static final int WRITE_CHUNK_BYTES = 64 * 1024;
+
+    public static final Range UNSATISFIABLE = new Range(-1, -2);
+
+    private final Map<Path, MappedFile> files = new ConcurrentHashMap<>();
+
+    public static class MappedFile {
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+        private final MappedByteBuffer buffer; // null if the file is too large to map
+
+        MappedFile(Path path, long size, long lastModified, MappedByteBuffer buffer) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.buffer = buffer;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getEtag() {
+            return "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+        }
+
+        /**
+         * Writes {@code length} bytes starting at {@code offset} to the response body.
+         */
+        public void writeTo(OutputStream out, long offset, long length) throws IOException {
+            WritableByteChannel target = Channels.newChannel(out);
+            if (buffer != null) {
+                ByteBuffer view = buffer.duplicate();
+                int end = (int) (offset + length);
+                view.position((int) offset);
+                // Hand the stream bounded slices so it does not copy the whole range at once
+                while (view.position() < end) {
+                    view.limit(Math.min(end, view.position() + WRITE_CHUNK_BYTES));
+                    while (view.hasRemaining()) {
+                        target.write(view);
+                    }
+                }
+                return;
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long position = offset;
+                long remaining = length;
+                while (remaining > 0) {
+                    long sent = channel.transferTo(position, remaining, target);
+                    if (sent <= 0) {
+                        throw new IOException("Unexpected end of " + path);
+                    }
+                    position += sent;
+                    remaining -= sent;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the shared mapping of a file, mapping it first if it is new or has changed.
+     */
+    public MappedFile get(Path path) throws IOException {
+        long size = Files.size(path);
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        MappedFile file = files.get(path);
+        if (file != null && file.size == size && file.lastModified == lastModified) {
+            return file;
+        }
+
+        MappedByteBuffer buffer = null;
+        if (size <= MMAP_MAX_BYTES) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size); // stays valid after close
+            }
+        }
+        MappedFile mapped = new MappedFile(path, size, lastModified, buffer);
+        files.put(path, mapped);
+        return mapped;
+    }
+
+    /**
+     * A byte range parsed from a {@code Range} header, with inclusive end.
+     */
+    public static class Range {
+        private final long start;
+        private final long end;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public long getLength() {
+            return end - start + 1;
+        }
+    }
+
+    /**
+     * Parses a single-range {@code Range} header against a file size.
+     *
+     * @return the range, null to send the whole file (no header, or several ranges which we do not
+     *         split into multipart responses), or {@link #UNSATISFIABLE}
+     */
+    public static Range parseRange(String header, long size) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // "bytes=-500" is the last 500 bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return UNSATISFIABLE;
+                }
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            }
+            if (start >= size || start > end) {
+                return UNSATISFIABLE;
+            }
+            return new Range(start, end);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
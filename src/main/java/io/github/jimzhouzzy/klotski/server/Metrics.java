@@ -0,0 +1,316 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics, scraped in Prometheus text format from {@code /metrics}.
+ * <p>
+ * Metrics are created once, usually into static fields, and recording into them never allocates or
+ * locks: counters are {@link LongAdder}s and histograms are fixed arrays of atomic bucket counts.
+ * Histograms use log-linear buckets (16 per power of two, so any value is placed within about 6%) and
+ * are exported as summaries with a few quantiles, plus their sum and count.
+ */
+public final class Metrics {
+    private static final Map<String, Family> FAMILIES = new LinkedHashMap<>(); // guarded by itself
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private Metrics() {
+    }
+
+    private static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final List<Metric> series = new ArrayList<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private interface Metric {
+        void write(StringBuilder out, String name);
+    }
+
+    private static <T extends Metric> T register(String name, String help, String type, T metric) {
+        synchronized (FAMILIES) {
+            Family family = FAMILIES.computeIfAbsent(name, n -> new Family(n, help, type));
+            if (!family.type.equals(type)) {
+                throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+            }
+            family.series.add(metric);
+        }
+        return metric;
+    }
+
+    /**
+     * Registers a counter.
+     *
+     * @param labels Prometheus labels without braces, e.g. {@code route="/login"}, or ""
+     */
+    public static Counter counter(String name, String help, String labels) {
+        return register(name, help, "counter", new Counter(labels));
+    }
+
+    /**
+     * Registers a histogram of durations recorded in nanoseconds and exported in seconds.
+     */
+    public static Histogram timer(String name, String help, String labels) {
+        return register(name, help, "summary", new Histogram(labels, 1 / NANOS_PER_SECOND));
+    }
+
+    /**
+     * Registers a histogram of plain values, such as sizes.
+     */
+    public static Histogram histogram(String name, String help, String labels) {
+        return register(name, help, "summary", new Histogram(labels, 1));
+    }
+
+    /**
+     * Registers a gauge read at scrape time.
+     */
+    public static void gauge(String name, String help, String labels, LongSupplier value) {
+        register(name, help, "gauge", (out, metricName) -> line(out, metricName, labels, value.getAsLong()));
+    }
+
+    public static class Counter implements Metric {
+        private final String labels;
+        private final LongAdder count = new LongAdder();
+
+        Counter(String labels) {
+            this.labels = labels;
+        }
+
+        public void inc() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        public void write(StringBuilder out, String name) {
+            line(out, name, labels, count.sum());
+        }
+    }
+
+    public static class Histogram implements Metric {
+        static final int SUB_BITS = 4;
+        static final int SUB_COUNT = 1 << SUB_BITS;
+        static final int BUCKETS = SUB_COUNT + (64 - SUB_BITS) * SUB_COUNT;
+
+        private final String labels;
+        private final double scale;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String labels, double scale) {
+            this.labels = labels;
+            this.scale = scale;
+        }
+
+        /**
+         * Values below 16 get a bucket each; above that, every power of two is split in 16.
+         */
+        static int bucketOf(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            return SUB_COUNT + shift * SUB_COUNT + (int) (value >>> shift) - SUB_COUNT;
+        }
+
+        /**
+         * Returns the largest value that falls into a bucket.
+         */
+        static long upperBoundOf(int bucket) {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int shift = (bucket - SUB_COUNT) / SUB_COUNT;
+            long sub = SUB_COUNT + (bucket - SUB_COUNT) % SUB_COUNT;
+            long upper = ((sub + 1) << shift) - 1;
+            return upper < 0 ? Long.MAX_VALUE : upper; // the last bucket reaches past Long.MAX_VALUE
+        }
+
+        public void record(long value) {
+            value = Math.max(value, 0);
+            counts.incrementAndGet(bucketOf(value));
+            sum.add(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // another thread raised the max, compare again
+            }
+        }
+
+        /**
+         * Records the time since {@code startNanos}, a {@link System#nanoTime} reading.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += counts.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * Returns the value below which the given fraction of the recorded values lie, in the
+         * recorded unit, or 0 if nothing was recorded.
+         */
+        public long quantile(double quantile) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            return quantile(snapshot, total, quantile);
+        }
+
+        private long quantile(long[] snapshot, long total, double quantile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= Math.max(rank, 1)) {
+                    return Math.min(upperBoundOf(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        @Override
+        public void write(StringBuilder out, String name) {
+            long[] snapshot = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                total += snapshot[i];
+            }
+            String separator = labels.isEmpty() ? "" : labels + ",";
+            for (double quantile : QUANTILES) {
+                line(out, name, separator + "quantile=\"" + quantile + "\"",
+                        quantile(snapshot, total, quantile) * scale);
+            }
+            line(out, name + "_sum", labels, sum.sum() * scale);
+            line(out, name + "_count", labels, total);
+        }
+    }
+
+    /**
+     * Times the requests of one HTTP context and counts their responses by status class.
+     * Requests for a path that was not listed are counted under the context path.
+     */
+    public static class HttpFilter extends Filter {
+        private static final String[] STATUS_CLASSES = {"none", "1xx", "2xx", "3xx", "4xx", "5xx"};
+
+        private final Map<String, Route> routes = new HashMap<>();
+        private final Route other;
+
+        private static class Route {
+            final Histogram duration;
+            final Counter[] responses = new Counter[STATUS_CLASSES.length];
+
+            Route(String server, String path) {
+                String labels = "server=\"" + server + "\",route=\"" + path + "\"";
+                duration = timer("klotski_http_request_duration_seconds", "Time to handle an HTTP request", labels);
+                for (int i = 0; i < responses.length; i++) {
+                    responses[i] = counter("klotski_http_responses_total", "HTTP responses by status class",
+                            labels + ",status=\"" + STATUS_CLASSES[i] + "\"");
+                }
+            }
+        }
+
+        public HttpFilter(String server, String contextPath, String... paths) {
+            other = new Route(server, contextPath);
+            routes.put(contextPath, other);
+            for (String path : paths) {
+                routes.put(path, new Route(server, path));
+            }
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            long start = System.nanoTime();
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                Route route = routes.getOrDefault(exchange.getRequestURI().getPath(), other);
+                route.duration.recordSince(start);
+                int status = exchange.getResponseCode() / 100;
+                route.responses[status >= 1 && status <= 5 ? status : 0].inc();
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Records request durations and response codes";
+        }
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format.
+     */
+    public static String scrape() {
+        List<Family> families;
+        synchronized (FAMILIES) {
+            families = new ArrayList<>(FAMILIES.values());
+        }
+        StringBuilder out = new StringBuilder(8192);
+        for (Family family : families) {
+            List<Metric> series;
+            synchronized (FAMILIES) {
+                series = new ArrayList<>(family.series);
+            }
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Metric metric : series) {
+                metric.write(out, family.name);
+            }
+        }
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == (long) value) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+}
@@ -0,0 +1,123 @@
+package io.github.jimzhouzzy.klotski.server;
+
+/**
+ * The recent boards of one player, kept in a fixed-size ring of primitive arrays.
+ * <p>
+ * Every entry is the board after a move together with that move ({@code origin << 2 | direction})
+ * and the time it was made; a new game is recorded as a {@link #RESET} entry holding its starting
+ * board. Once {@code klotski.history.capacity} entries are held, each new one overwrites the oldest.
+ */
+public class MoveHistory {
+    public static final int CAPACITY = Math.max(1, Integer.getInteger("klotski.history.capacity", 1024));
+    public static final byte RESET = -1;
+
+    private final long[] boards = new long[CAPACITY];
+    private final byte[] moves = new byte[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+    private long count; // entries recorded so far; entry n is at index n % CAPACITY
+    private long gameStart = -1; // entry number of the latest reset
+
+    /**
+     * A copy of consecutive entries, oldest first.
+     */
+    public static class Slice {
+        private final long firstEntry;
+        private final long[] boards;
+        private final byte[] moves;
+        private final long[] times;
+        private final boolean complete;
+
+        Slice(long firstEntry, long[] boards, byte[] moves, long[] times, boolean complete) {
+            this.firstEntry = firstEntry;
+            this.boards = boards;
+            this.moves = moves;
+            this.times = times;
+            this.complete = complete;
+        }
+
+        public int size() {
+            return boards.length;
+        }
+
+        /**
+         * Returns the number of the first entry, counted since the player's first board.
+         */
+        public long getFirstEntry() {
+            return firstEntry;
+        }
+
+        public long getBoard(int i) {
+            return boards[i];
+        }
+
+        /**
+         * Returns the move that led to entry {@code i}, or {@link #RESET} for the start of a game.
+         */
+        public int getMove(int i) {
+            return moves[i];
+        }
+
+        public long getTime(int i) {
+            return times[i];
+        }
+
+        /**
+         * Whether the slice starts where it was asked to, rather than where the ring had
+         * already overwritten older entries.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    public synchronized void reset(long board) {
+        gameStart = count;
+        record(board, RESET);
+    }
+
+    public synchronized void move(long board, int move) {
+        record(board, move);
+    }
+
+    private void record(long board, int move) {
+        int index = (int) (count % CAPACITY);
+        boards[index] = board;
+        moves[index] = (byte) move;
+        times[index] = System.currentTimeMillis();
+        count++;
+    }
+
+    /**
+     * Returns up to the last {@code n} entries.
+     */
+    public synchronized Slice recent(int n) {
+        long first = Math.max(count - Math.max(0, n), 0);
+        return slice(Math.max(first, count - CAPACITY), first >= count - CAPACITY);
+    }
+
+    /**
+     * Returns the entries of the latest game, from its starting board on. If the game is longer
+     * than the ring, the slice starts at the oldest entry still held and is not complete.
+     */
+    public synchronized Slice currentGame() {
+        if (gameStart < 0) {
+            return slice(count, true);
+        }
+        long oldest = Math.max(count - CAPACITY, 0);
+        return slice(Math.max(gameStart, oldest), gameStart >= oldest);
+    }
+
+    private Slice slice(long first, boolean complete) {
+        int size = (int) (count - first);
+        long[] sliceBoards = new long[size];
+        byte[] sliceMoves = new byte[size];
+        long[] sliceTimes = new long[size];
+        for (int i = 0; i < size; i++) {
+            int index = (int) ((first + i) % CAPACITY);
+            sliceBoards[i] = boards[index];
+            sliceMoves[i] = moves[index];
+            sliceTimes[i] = times[index];
+        }
+        return new Slice(first, sliceBoards, sliceMoves, sliceTimes, complete);
+    }
+}
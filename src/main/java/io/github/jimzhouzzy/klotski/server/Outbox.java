@@ -0,0 +1,74 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded queue of board updates waiting to be written to one socket.
+ * Only the latest board of each user matters, so a newer update replaces a pending one
+ * for the same user (last write wins) instead of queueing behind it.
+ */
+public class Outbox {
+    public static final int CAPACITY = Integer.getInteger("klotski.outbox.capacity", 256);
+    public static final int HIGH_WATER_MARK = Integer.getInteger("klotski.outbox.highWaterMark", 64);
+
+    private static final BoardUpdate[] EMPTY = new BoardUpdate[0];
+    private static final Metrics.Counter COALESCED = Metrics.counter("klotski_ws_outbox_updates_total",
+            "Pending board updates replaced by a newer one or dropped from a full outbox", "outcome=\"coalesced\"");
+    private static final Metrics.Counter DROPPED = Metrics.counter("klotski_ws_outbox_updates_total",
+            "Pending board updates replaced by a newer one or dropped from a full outbox", "outcome=\"dropped\"");
+
+    private final LinkedHashMap<String, BoardUpdate> pending = new LinkedHashMap<>();
+    private volatile int depth;
+    // Per socket, for the slow-socket log lines; the totals are in the metrics
+    private long coalesced; // guarded by this
+    private long dropped; // guarded by this
+    private long sent; // guarded by this
+
+    public synchronized void add(BoardUpdate update) {
+        if (pending.remove(update.getUsername()) != null) {
+            coalesced++;
+            COALESCED.inc();
+        } else if (pending.size() >= CAPACITY) {
+            // Full: the oldest pending board is the least useful one
+            Iterator<BoardUpdate> eldest = pending.values().iterator();
+            eldest.next();
+            eldest.remove();
+            dropped++;
+            DROPPED.inc();
+        }
+        pending.put(update.getUsername(), update);
+        depth = pending.size();
+    }
+
+    /**
+     * Removes and returns every pending update in arrival order.
+     */
+    public synchronized BoardUpdate[] drain() {
+        if (pending.isEmpty()) {
+            return EMPTY;
+        }
+        BoardUpdate[] updates = pending.values().toArray(EMPTY);
+        pending.clear();
+        depth = 0;
+        sent += updates.length;
+        return updates;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public boolean isEmpty() {
+        return depth == 0;
+    }
+
+    public boolean isOverHighWaterMark() {
+        return depth >= HIGH_WATER_MARK;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "depth=" + depth + " coalesced=" + coalesced + " dropped=" + dropped + " sent=" + sent;
+    }
+}
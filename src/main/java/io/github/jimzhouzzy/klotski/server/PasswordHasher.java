@@ -0,0 +1,277 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Hashes and verifies passwords with PBKDF2 on a bounded pool of its own.
+ * <p>
+ * A KDF costs tens of milliseconds of CPU by design, so it never runs on the HTTP threads: the pool has
+ * {@code klotski.auth.threads} threads (the number of cores by default) and a queue of
+ * {@code klotski.auth.queue} tasks. When the queue is full, or a task waited longer than
+ * {@code klotski.auth.timeoutMillis}, the call fails fast with {@link RejectedExecutionException} and the
+ * client is told to retry, so a login storm cannot delay token logins or save requests.
+ * <p>
+ * Successful verifications are remembered for {@code klotski.auth.cacheSeconds}, keyed by a SHA-256 of
+ * the credentials salted with a random per-process value, so clients that reconnect and log in again
+ * skip the KDF. An entry only matches the stored hash it was verified against; changing a password
+ * invalidates it.
+ * <p>
+ * Stored passwords look like {@code pbkdf2-sha256$<iterations>$<salt>$<hash>}. Anything else is a
+ * plaintext password from before hashing, which {@link #needsRehash} reports so it can be replaced
+ * after the next successful login.
+ */
+public class PasswordHasher implements Closeable {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "pbkdf2-sha256$";
+    public static final int ITERATIONS = Integer.getInteger("klotski.auth.iterations", 100_000);
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final int THREADS = Integer.getInteger("klotski.auth.threads",
+            Runtime.getRuntime().availableProcessors());
+    private static final int QUEUE = Integer.getInteger("klotski.auth.queue", THREADS * 16);
+    private static final long TIMEOUT_MILLIS = Long.getLong("klotski.auth.timeoutMillis", 2000);
+    private static final long CACHE_MILLIS = Long.getLong("klotski.auth.cacheSeconds", 300) * 1000;
+    private static final int CACHE_SIZE = Integer.getInteger("klotski.auth.cacheSize", 10_000);
+
+    private static final Metrics.Histogram KDF_TIME = Metrics.timer("klotski_auth_kdf_duration_seconds",
+            "CPU time of one password hash or verification", "");
+    private static final Metrics.Histogram WAIT_TIME = Metrics.timer("klotski_auth_queue_wait_seconds",
+            "Time a password task waited for a hashing thread", "");
+    private static final Metrics.Counter CACHE_HITS = Metrics.counter("klotski_auth_cache_total",
+            "Password verifications answered from the cache", "result=\"hit\"");
+    private static final Metrics.Counter CACHE_MISSES = Metrics.counter("klotski_auth_cache_total",
+            "Password verifications answered from the cache", "result=\"miss\"");
+    private static final Metrics.Counter REJECTED = Metrics.counter("klotski_auth_rejected_total",
+            "Password tasks refused because the hashing pool was saturated", "");
+
+    private final SecureRandom random = new SecureRandom();
+    private final byte[] cacheSalt = new byte[SALT_BYTES];
+    private final Map<String, Verified> cache = new ConcurrentHashMap<>(); // by salted credential hash
+    private final ThreadPoolExecutor pool;
+
+    private static class Verified {
+        final String stored;
+        final long expiryTime;
+
+        Verified(String stored, long expiryTime) {
+            this.stored = stored;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    public PasswordHasher() {
+        random.nextBytes(cacheSalt);
+        AtomicInteger count = new AtomicInteger();
+        pool = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(QUEUE), r -> {
+            Thread thread = new Thread(r, "password-hasher-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Metrics.gauge("klotski_auth_queue_length", "Password tasks waiting for a hashing thread", "",
+                () -> pool.getQueue().size());
+    }
+
+    /**
+     * Hashes a new password on the hashing pool.
+     *
+     * @throws RejectedExecutionException if the pool is saturated
+     */
+    public String hash(String password) {
+        return run(() -> encode(password));
+    }
+
+    /**
+     * Checks a password against its stored form, on the hashing pool unless the credentials were
+     * verified recently.
+     *
+     * @param stored the stored hash, a plaintext password from before hashing, or null for no such user
+     * @throws RejectedExecutionException if the pool is saturated
+     */
+    public boolean verify(String username, String password, String stored) {
+        if (stored == null) {
+            return false;
+        }
+        String key = cacheKey(username, password);
+        Verified verified = cache.get(key);
+        if (verified != null && verified.stored.equals(stored) && verified.expiryTime > System.currentTimeMillis()) {
+            CACHE_HITS.inc();
+            return true;
+        }
+        CACHE_MISSES.inc();
+        boolean matches = stored.startsWith(PREFIX)
+                ? run(() -> matches(password, stored))
+                : MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        if (matches) {
+            remember(key, stored);
+        }
+        return matches;
+    }
+
+    /**
+     * Returns whether a stored password is a well-formed hash of this class rather than plaintext.
+     */
+    public static boolean isHash(String stored) {
+        if (!stored.startsWith(PREFIX)) {
+            return false;
+        }
+        String[] parts = stored.split("\\$");
+        try {
+            Base64.Decoder base64 = Base64.getDecoder();
+            return parts.length == 4 && Integer.parseInt(parts[1]) > 0
+                    && base64.decode(parts[2]).length > 0 && base64.decode(parts[3]).length == HASH_BITS / 8;
+        } catch (IllegalArgumentException e) {
+            return false; // NumberFormatException too
+        }
+    }
+
+    /**
+     * Returns whether a stored password should be hashed again: it is plaintext, or was hashed
+     * with fewer iterations than are configured now.
+     */
+    public static boolean needsRehash(String stored) {
+        if (!stored.startsWith(PREFIX)) {
+            return true;
+        }
+        String[] parts = stored.split("\\$");
+        try {
+            return parts.length != 4 || Integer.parseInt(parts[1]) < ITERATIONS;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Hashes a password in the background and hands the result to {@code store}; does nothing if the
+     * pool is busy, the next login tries again.
+     */
+    public void rehashLater(String password, Consumer<String> store) {
+        try {
+            pool.execute(() -> {
+                long start = System.nanoTime();
+                String hashed = encode(password);
+                KDF_TIME.recordSince(start);
+                store.accept(hashed);
+            });
+        } catch (RejectedExecutionException e) {
+            REJECTED.inc();
+        }
+    }
+
+    private <T> T run(Callable<T> task) {
+        long queued = System.nanoTime();
+        Future<T> future;
+        try {
+            future = pool.submit(() -> {
+                WAIT_TIME.recordSince(queued);
+                long start = System.nanoTime();
+                T result = task.call();
+                KDF_TIME.recordSince(start);
+                return result;
+            });
+        } catch (RejectedExecutionException e) {
+            REJECTED.inc();
+            throw e;
+        }
+        try {
+            return future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            REJECTED.inc();
+            throw new RejectedExecutionException("Password hashing timed out", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while hashing a password", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Password hashing failed", e.getCause());
+        }
+    }
+
+    private String encode(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + ITERATIONS + "$" + base64.encodeToString(salt) + "$"
+                + base64.encodeToString(pbkdf2(password, salt, ITERATIONS));
+    }
+
+    private static boolean matches(String password, String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        try {
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] expected = base64.decode(parts[3]);
+            return MessageDigest.isEqual(expected, pbkdf2(password, base64.decode(parts[2]), Integer.parseInt(parts[1])));
+        } catch (IllegalArgumentException e) {
+            return false; // a damaged entry matches no password
+        }
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private String cacheKey(String username, String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(cacheSalt);
+            digest.update(username.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(password.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private void remember(String key, String stored) {
+        long now = System.currentTimeMillis();
+        if (cache.size() >= CACHE_SIZE) {
+            // Drop what has expired; if the cache is still full the login is simply not cached
+            for (Iterator<Verified> entries = cache.values().iterator(); entries.hasNext(); ) {
+                if (entries.next().expiryTime <= now) {
+                    entries.remove();
+                }
+            }
+            if (cache.size() >= CACHE_SIZE) {
+                return;
+            }
+        }
+        cache.put(key, new Verified(stored, now + CACHE_MILLIS));
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,118 @@
+package io.github.jimzhouzzy.klotski.server;
+
+/**
+ * The authoritative board of one player.
+ * <p>
+ * The occupancy and piece-origin masks are kept next to the packed board, so checking a move is
+ * one table lookup and one mask test ({@link Board#moveTarget}) and applying it updates a few bits,
+ * instead of rescanning all 20 cells. Every board it takes on is recorded in its {@link MoveHistory}.
+ */
+public final class PlayerBoard {
+    private long board = Board.INVALID;
+    private int occupancy;
+    private int origins;
+    private long moves;
+    private long start = Board.INVALID; // the board the current game started from
+    private long startTime;
+    private boolean solvedReported; // the current game was already handed to the leaderboard
+    private boolean unranked; // a socket without a verified login changed the current game
+    private final MoveHistory history = new MoveHistory();
+
+    /**
+     * Replaces the board, e.g. when the player starts a new game.
+     *
+     * @return false if the board is not well-formed, in which case nothing changes
+     */
+    public synchronized boolean reset(long board) {
+        if (board == Board.INVALID || !Board.isValid(board)) {
+            return false;
+        }
+        this.board = board;
+        this.occupancy = Board.occupancy(board);
+        this.origins = Board.origins(board);
+        this.moves = 0;
+        this.start = board;
+        this.startTime = System.currentTimeMillis();
+        this.solvedReported = Board.isSolved(board); // starting solved is not a game
+        this.unranked = false;
+        history.reset(board);
+        return true;
+    }
+
+    /**
+     * Takes on a full board sent by a client that does not send moves: a board one legal move away
+     * counts as that move, the same board changes nothing, and any other board starts a new game.
+     *
+     * @return false if the board is not well-formed
+     */
+    public synchronized boolean update(long next) {
+        if (next == board && board != Board.INVALID) {
+            return true;
+        }
+        int move = Board.findMove(board, next);
+        if (move >= 0) {
+            return move(move >>> 2, move & 3) != Board.INVALID;
+        }
+        return reset(next);
+    }
+
+    /**
+     * Moves the piece whose top-left corner is {@code origin} one cell in {@code direction}.
+     *
+     * @return the new board, or {@link Board#INVALID} if there is no board yet or the move is illegal
+     */
+    public synchronized long move(int origin, int direction) {
+        if (board == Board.INVALID || origin < 0 || origin >= Board.CELLS || direction < 0 || direction > 3
+                || (origins & (1 << origin)) == 0) {
+            return Board.INVALID;
+        }
+        int code = Board.cell(board, origin);
+        int target = Board.moveTarget(code, origin, direction);
+        if (target < 0 || (target & occupancy) != 0) {
+            return Board.INVALID;
+        }
+        int newOrigin = origin + Board.step(direction);
+        board = Board.shift(board, code, origin, direction);
+        occupancy = (occupancy & ~Board.shapeMask(code, origin)) | Board.shapeMask(code, newOrigin);
+        origins = (origins & ~(1 << origin)) | (1 << newOrigin);
+        moves++;
+        history.move(board, origin << 2 | direction);
+        return board;
+    }
+
+    public synchronized long get() {
+        return board;
+    }
+
+    /**
+     * Keeps the current game off the leaderboard; the next {@link #reset} starts a ranked one again.
+     */
+    public synchronized void markUnranked() {
+        unranked = true;
+    }
+
+    /**
+     * Returns the current game if it has just been solved, and only once per game.
+     *
+     * @return the result, or null if the board is not solved, the game was already taken or it is unranked
+     */
+    public synchronized Leaderboard.Result takeSolvedGame(String username) {
+        if (solvedReported || unranked || board == Board.INVALID || !Board.isSolved(board)) {
+            return null;
+        }
+        solvedReported = true;
+        long now = System.currentTimeMillis();
+        return new Leaderboard.Result(username, start, (int) moves, now - startTime, now);
+    }
+
+    public MoveHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Returns the number of moves applied since the last reset.
+     */
+    public synchronized long getMoves() {
+        return moves;
+    }
+}
@@ -0,0 +1,176 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token-bucket rate limits, each keyed by a username or a remote address.
+ * <p>
+ * A {@link Limit} is configured with {@code -Dklotski.limit.<name>=<perSecond>[/<burst>]}; a rate of 0
+ * turns it off. Each key's bucket is one {@link AtomicLong} holding the time at which the bucket will
+ * be full again (the generic cell rate algorithm, which behaves exactly like a token bucket), so a
+ * check is a read and a compare-and-set with no lock and no allocation once the key is known.
+ * Buckets that have refilled completely are dropped by a background sweep every
+ * {@code klotski.limit.sweepSeconds}, so idle keys cost nothing.
+ * <p>
+ * Rejections are counted as {@code klotski_rate_limited_total{limit=...}}.
+ */
+public final class RateLimiter {
+    private static final long SWEEP_SECONDS = Long.getLong("klotski.limit.sweepSeconds", 60);
+    private static final List<Limit> LIMITS = new CopyOnWriteArrayList<>();
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "rate-limit-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        SWEEPER.scheduleWithFixedDelay(() -> {
+            for (Limit limit : LIMITS) {
+                limit.sweep();
+            }
+        }, SWEEP_SECONDS, SWEEP_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // WebSocket messages of any kind per remote address, generous because players may share an address
+    public static final Limit WS_ADDRESS = new Limit("ws.address", 200, 400);
+    // Board changes (boardState:, move:, binary frames) per user, each one is fanned out to spectators
+    public static final Limit WS_BOARD = new Limit("ws.board", 20, 40);
+    public static final Limit SIGNUP = new Limit("signup", 0.2, 5);
+    public static final Limit LOGIN = new Limit("login", 5, 20);
+    // Password attempts per username, so guessing one account's password from many addresses is slow too
+    public static final Limit LOGIN_USER = new Limit("loginUser", 0.2, 10);
+    public static final Limit GAME_SAVE = new Limit("gameSave", 10, 30);
+    // Uploads per user, on top of GAME_SAVE per address
+    public static final Limit UPLOAD_SAVE = new Limit("uploadSave", 1, 10);
+    public static final Limit SOLVER = new Limit("solver", 20, 50);
+    public static final Limit READ = new Limit("read", 20, 50);
+    public static final Limit WEB = new Limit("web", 50, 200);
+
+    private RateLimiter() {
+    }
+
+    /**
+     * One rate limit with a bucket per key.
+     */
+    public static class Limit {
+        private final String name;
+        private final long intervalNanos; // time to earn one token, 0 when unlimited
+        private final long burstNanos; // time to fill the bucket from empty
+        private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+        private final Metrics.Counter rejected;
+
+        public Limit(String name, double defaultPerSecond, int defaultBurst) {
+            this.name = name;
+            String value = System.getProperty("klotski.limit." + name);
+            double perSecond = defaultPerSecond;
+            int burst = defaultBurst;
+            if (value != null) {
+                int slash = value.indexOf('/');
+                perSecond = Double.parseDouble(slash < 0 ? value : value.substring(0, slash));
+                burst = slash < 0 ? Math.max(1, (int) Math.ceil(perSecond)) : Integer.parseInt(value.substring(slash + 1));
+            }
+            intervalNanos = perSecond > 0 ? (long) (1e9 / perSecond) : 0;
+            burstNanos = intervalNanos * Math.max(1, burst);
+            rejected = Metrics.counter("klotski_rate_limited_total", "Requests and messages rejected by a rate limit",
+                    "limit=\"" + name + "\"");
+            Metrics.gauge("klotski_rate_limit_keys", "Keys with a bucket that has not refilled yet",
+                    "limit=\"" + name + "\"", buckets::size);
+            if (intervalNanos > 0) {
+                LIMITS.add(this);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Takes a token from the bucket of {@code key}.
+         *
+         * @return false if the bucket is empty, in which case the caller should drop the request
+         */
+        public boolean tryAcquire(String key) {
+            if (intervalNanos == 0) {
+                return true;
+            }
+            AtomicLong bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(System.nanoTime()));
+            }
+            long now = System.nanoTime();
+            while (true) {
+                long full = bucket.get();
+                long next = Math.max(full, now) + intervalNanos;
+                if (next - now > burstNanos) {
+                    rejected.inc();
+                    return false;
+                }
+                if (bucket.compareAndSet(full, next)) {
+                    return true;
+                }
+            }
+        }
+
+        // A caller still holding a swept bucket only takes its token from a bucket that was full anyway
+        private void sweep() {
+            long now = System.nanoTime();
+            buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+        }
+    }
+
+    /**
+     * Returns the key for the remote end of a connection: its address without the port.
+     */
+    public static String addressOf(InetSocketAddress address) {
+        if (address == null) {
+            return "unknown";
+        }
+        return address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostString();
+    }
+
+    /**
+     * Rejects requests from an address over its limit with 429 before they reach the handler.
+     */
+    public static class HttpFilter extends Filter {
+        private final Limit limit;
+
+        public HttpFilter(Limit limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (!limit.tryAcquire(addressOf(exchange.getRemoteAddress()))) {
+                reject(exchange);
+                return;
+            }
+            chain.doFilter(exchange);
+        }
+
+        @Override
+        public String description() {
+            return "Limits the request rate of each remote address";
+        }
+    }
+
+    /**
+     * Answers 429 with no body.
+     */
+    public static void reject(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        exchange.sendResponseHeaders(429, -1); // Too Many Requests
+        exchange.close();
+    }
+}
@@ -0,0 +1,127 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@code GET /replay?username=<user>} streams the latest game of a player.
+ * <p>
+ * While the server still holds the game in the player's {@link MoveHistory}, the response lists
+ * every move with the board it led to ({@code "source": "live"}). Otherwise, or with
+ * {@code source=save}, it falls back to the player's newest save, or the save named by
+ * {@code slot}, and returns its data as uploaded ({@code "source": "save"}).
+ */
+public class ReplayHandler implements HttpHandler {
+    private static final Gson gson = new Gson();
+
+    private final GameWebSocketServer gameServer;
+
+    public ReplayHandler(GameWebSocketServer gameServer) {
+        this.gameServer = gameServer;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1); // Method not allowed
+            exchange.close();
+            return;
+        }
+        Map<String, String> params = parseQuery(exchange.getRequestURI().getQuery());
+        String username = params.get("username");
+        if (username == null) {
+            send(exchange, 400, Map.of("code", 400, "message", "Missing username"));
+            return;
+        }
+
+        MoveHistory history = "save".equals(params.get("source")) ? null : gameServer.getHistory(username);
+        MoveHistory.Slice game = history == null ? null : history.currentGame();
+        if (game != null && game.size() > 0) {
+            sendHistory(exchange, username, game);
+            return;
+        }
+
+        GameSave save = GameSaveHandler.readSave(username, params.get("slot"));
+        if (save == null) {
+            send(exchange, 404, Map.of("code", 404, "message", "No game found for user"));
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(200, 0);
+        try (JsonWriter writer = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)))) {
+            writer.beginObject();
+            writer.name("code").value(200);
+            writer.name("username").value(username);
+            writer.name("source").value("save");
+            writer.name("date").value(save.getDate());
+            writer.name("autoSave").value(save.getAutoSave());
+            writer.name("saveData").value(save.getSaveData());
+            writer.endObject();
+        }
+    }
+
+    // Streamed with chunked encoding, a long game is never held as one string
+    private static void sendHistory(HttpExchange exchange, String username, MoveHistory.Slice game) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(200, 0);
+        try (JsonWriter writer = new JsonWriter(new BufferedWriter(
+                new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8)))) {
+            writer.beginObject();
+            writer.name("code").value(200);
+            writer.name("username").value(username);
+            writer.name("source").value("live");
+            // false if the start of the game was already overwritten
+            writer.name("complete").value(game.isComplete());
+            writer.name("solved").value(Board.isSolved(game.getBoard(game.size() - 1)));
+            writer.name("moves").beginArray();
+            for (int i = 0; i < game.size(); i++) {
+                int move = game.getMove(i);
+                writer.beginObject();
+                writer.name("move");
+                if (move == MoveHistory.RESET) {
+                    writer.nullValue();
+                } else {
+                    writer.value(GameWebSocketServer.formatMove(move));
+                }
+                writer.name("time").value(game.getTime(i));
+                writer.name("board").value(SolverHandler.toLetters(game.getBoard(i)));
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, Map<String, ?> body) throws IOException {
+        byte[] response = gson.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                String[] keyValue = pair.split("=");
+                if (keyValue.length == 2) {
+                    params.put(keyValue[0], keyValue[1]);
+                }
+            }
+        }
+        return params;
+    }
+}
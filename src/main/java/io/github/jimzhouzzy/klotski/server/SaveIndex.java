@@ -0,0 +1,151 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The saves of one user, newest first.
+ * <p>
+ * Manual saves are kept in a bounded array ordered by date on insert; once it holds
+ * {@link #MAX_MANUAL_SAVES} saves, adding one evicts the oldest (the last element).
+ * A user has at most {@link #MAX_AUTOSAVES} autosave, since every autosave goes to the store's
+ * single {@link SaveStore#AUTOSAVE_SLOT}. Writers replace an immutable snapshot, so
+ * readers never lock and never see a half-updated list.
+ */
+public class SaveIndex {
+    public static final int MAX_MANUAL_SAVES = Math.max(0, Integer.getInteger("klotski.saves.maxManual", 3));
+    public static final int MAX_AUTOSAVES = 1;
+    private static final SaveInfo[] NONE = new SaveInfo[0];
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private SaveInfo[] manual = NONE; // guarded by this, newest first
+    private SaveInfo autosave; // guarded by this
+    private volatile Snapshot snapshot = new Snapshot(0, NONE);
+
+    /**
+     * An immutable view of the index. The version changes whenever the saves do; versions come
+     * from one counter for the whole process, so an index that is evicted and loaded again never
+     * reuses a version an earlier copy handed out.
+     */
+    public static class Snapshot {
+        private final long version;
+        private final SaveInfo[] saves;
+
+        Snapshot(long version, SaveInfo[] saves) {
+            this.version = version;
+            this.saves = saves;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Returns every save, newest first. The array must not be modified.
+         */
+        public SaveInfo[] getSaves() {
+            return saves;
+        }
+    }
+
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    public boolean isEmpty() {
+        return snapshot.saves.length == 0;
+    }
+
+    /**
+     * Adds a save, replacing the save in the same slot.
+     *
+     * @return the saves that fell out of retention and should be deleted from the store;
+     *         this may be {@code info} itself if it is older than every retained manual save
+     */
+    public synchronized List<SaveInfo> add(SaveInfo info) {
+        List<SaveInfo> evicted = new ArrayList<>(1);
+        if (info.getAutoSave()) {
+            autosave = info; // the store overwrites the autosave slot, last write wins
+        } else {
+            insertManual(info, evicted);
+        }
+        publish();
+        return evicted;
+    }
+
+    private void insertManual(SaveInfo info, List<SaveInfo> evicted) {
+        int existing = indexOf(manual, info.getSlot());
+        SaveInfo[] base = manual;
+        if (existing >= 0) {
+            base = new SaveInfo[manual.length - 1];
+            System.arraycopy(manual, 0, base, 0, existing);
+            System.arraycopy(manual, existing + 1, base, existing, manual.length - existing - 1);
+        }
+
+        int position = 0;
+        while (position < base.length && !info.isNewerThan(base[position])) {
+            position++;
+        }
+        int length = Math.min(base.length + 1, MAX_MANUAL_SAVES);
+        if (position >= length) {
+            evicted.add(info); // older than everything kept
+            if (existing >= 0) {
+                manual = base;
+            }
+            return;
+        }
+        if (base.length + 1 > length) {
+            evicted.add(base[base.length - 1]);
+        }
+
+        SaveInfo[] next = new SaveInfo[length];
+        System.arraycopy(base, 0, next, 0, position);
+        next[position] = info;
+        System.arraycopy(base, position, next, position + 1, length - position - 1);
+        manual = next;
+    }
+
+    public synchronized void remove(String slot) {
+        if (autosave != null && autosave.getSlot().equals(slot)) {
+            autosave = null;
+        } else {
+            int index = indexOf(manual, slot);
+            if (index < 0) {
+                return;
+            }
+            SaveInfo[] next = new SaveInfo[manual.length - 1];
+            System.arraycopy(manual, 0, next, 0, index);
+            System.arraycopy(manual, index + 1, next, index, manual.length - index - 1);
+            manual = next;
+        }
+        publish();
+    }
+
+    private static int indexOf(SaveInfo[] saves, String slot) {
+        for (int i = 0; i < saves.length; i++) {
+            if (saves[i].getSlot().equals(slot)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Caller holds the lock
+    private void publish() {
+        long version = VERSIONS.incrementAndGet();
+        if (autosave == null) {
+            snapshot = new Snapshot(version, manual);
+            return;
+        }
+        SaveInfo[] next = new SaveInfo[manual.length + 1];
+        int position = 0;
+        while (position < manual.length && !autosave.isNewerThan(manual[position])) {
+            position++;
+        }
+        System.arraycopy(manual, 0, next, 0, position);
+        next[position] = autosave;
+        System.arraycopy(manual, position, next, position + 1, manual.length - position);
+        snapshot = new Snapshot(version, next);
+    }
+}
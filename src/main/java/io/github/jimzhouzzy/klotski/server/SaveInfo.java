@@ -0,0 +1,91 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Metadata of a stored save: everything but the save data itself.
+ */
+public class SaveInfo {
+    private final String username;
+    private final String slot;
+    private final String date; // ISO 8601 format
+    private final boolean autoSave;
+    private final long epochMillis; // date parsed once, for ordering
+
+    public SaveInfo(String username, String slot, String date, boolean autoSave) {
+        this.username = username;
+        this.slot = slot;
+        this.date = date;
+        this.autoSave = autoSave;
+        this.epochMillis = parseEpochMillis(date);
+    }
+
+    /**
+     * Parses an ISO 8601 date with or without a zone offset (local dates are taken as UTC).
+     *
+     * @return milliseconds since the epoch, or {@link Long#MIN_VALUE} if the date is missing or malformed
+     */
+    static long parseEpochMillis(String date) {
+        if (date == null) {
+            return Long.MIN_VALUE;
+        }
+        try {
+            return OffsetDateTime.parse(date).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // no offset, try the other forms
+        }
+        try {
+            return Instant.parse(date).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            // no offset, try a local date
+        }
+        try {
+            return LocalDateTime.parse(date).toInstant(ZoneOffset.UTC).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    public static SaveInfo of(GameSave save) {
+        return new SaveInfo(save.getUsername(), SaveStore.slotOf(save), save.getDate(), save.getAutoSave());
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getSlot() {
+        return slot;
+    }
+
+    public String getDate() {
+        return date;
+    }
+
+    public boolean getAutoSave() {
+        return autoSave;
+    }
+
+    public long getEpochMillis() {
+        return epochMillis;
+    }
+
+    /**
+     * Whether this save is newer than {@code other}; saves with the same instant are ordered by date text.
+     */
+    public boolean isNewerThan(SaveInfo other) {
+        if (epochMillis != other.epochMillis) {
+            return epochMillis > other.epochMillis;
+        }
+        return date != null && (other.date == null || date.compareTo(other.date) > 0);
+    }
+
+    @Override
+    public String toString() {
+        return username + "/" + slot;
+    }
+}
@@ -0,0 +1,86 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Storage engine behind {@link GameSaveHandler}.
+ * Saves are addressed by (username, slot): every autosave of a user shares the
+ * {@link #AUTOSAVE_SLOT}, manual saves use their date as the slot.
+ * <p>
+ * {@code -Dklotski.saves.store} selects the engine: {@code log} (default, {@link LogSaveStore})
+ * or {@code directory} (the original one-file-per-save layout, {@link DirectorySaveStore}).
+ */
+public interface SaveStore extends Closeable {
+    String AUTOSAVE_SLOT = "Autosave";
+    String LEGACY_DIRECTORY = "gameSaves";
+    String LOG_DIRECTORY = "gameSaveLog";
+
+    /**
+     * Stores a save, replacing whatever is in its slot.
+     */
+    void put(GameSave save) throws IOException;
+
+    void delete(String username, String slot) throws IOException;
+
+    /**
+     * Lists the saves of a user without reading their save data.
+     */
+    List<SaveInfo> list(String username) throws IOException;
+
+    /**
+     * Reads one save, or returns null if the slot is empty.
+     */
+    GameSave read(String username, String slot) throws IOException;
+
+    default List<GameSave> load(String username) throws IOException {
+        List<GameSave> saves = new ArrayList<>();
+        for (SaveInfo info : list(username)) {
+            GameSave save = read(username, info.getSlot());
+            if (save != null) {
+                saves.add(save);
+            }
+        }
+        return saves;
+    }
+
+    Set<String> users();
+
+    /**
+     * Returns up to {@code limit} users, most recently saved first.
+     */
+    List<String> recentUsers(int limit);
+
+    static String slotOf(GameSave save) {
+        return save.getAutoSave() ? AUTOSAVE_SLOT : save.getDate();
+    }
+
+    static SaveStore open() throws IOException {
+        String engine = System.getProperty("klotski.saves.store", "log");
+        if ("directory".equals(engine)) {
+            return new TimedSaveStore(new DirectorySaveStore(Paths.get(LEGACY_DIRECTORY)));
+        }
+        if (!"log".equals(engine)) {
+            throw new IllegalArgumentException("Unknown klotski.saves.store engine: " + engine);
+        }
+
+        LogSaveStore store = new LogSaveStore(Paths.get(LOG_DIRECTORY));
+        // Saves written by older versions are copied into the log once; the old files are left in place
+        Path legacy = Paths.get(LEGACY_DIRECTORY);
+        Path marker = Paths.get(LOG_DIRECTORY, "legacy-imported");
+        if (Files.isDirectory(legacy) && !Files.exists(marker)) {
+            int imported = store.importFrom(new DirectorySaveStore(legacy));
+            Files.createFile(marker);
+            LoggerFactory.getLogger(SaveStore.class).info("Imported {} saves from {}", imported, legacy);
+        }
+        return new TimedSaveStore(store);
+    }
+}
@@ -0,0 +1,137 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Precomputed distances to the solution for every position reachable from the standard openings.
+ * <p>
+ * Building explores the state space breadth-first from the openings, then runs a second breadth-first
+ * search backwards from every solved position (moves are reversible, so this gives each state its
+ * shortest distance to a solution); both run in parallel, see {@link StateSpaceSearch}. States are
+ * canonical boards ({@link Board#canonical}), so a position and its mirror image share one entry.
+ * Lookups afterwards are a single hash probe. Distances count single-cell steps.
+ * <p>
+ * The finished table is written to a file that later starts map instead of building again.
+ */
+public class Solver {
+    private static final Logger logger = LoggerFactory.getLogger(Solver.class);
+
+    /**
+     * The classic openings, all with Cao Cao, Guan Yu, four generals and four soldiers.
+     */
+    public static final Map<String, String> OPENINGS = new LinkedHashMap<>();
+
+    static {
+        OPENINGS.put("Heng Dao Li Ma",
+                "G C C G\nG C C G\nG Y Y G\nG S S G\nS . . S\n");
+        OPENINGS.put("Zhi Hui Ruo Ding",
+                "G C C G\nG C C G\nS Y Y S\nG S S G\nG . . G\n");
+        OPENINGS.put("Bing Fen San Lu",
+                "S C C S\nG C C G\nG Y Y G\nG S S G\nG . . G\n");
+    }
+
+    private static final String DEFAULT_TABLE_FILE = "solverTable.bin";
+    private static final long TABLE_FORMAT = 1; // bump when distances are computed differently
+
+    private final DistanceTable table;
+
+    Solver(DistanceTable table) {
+        this.table = table;
+    }
+
+    /**
+     * Maps the table cached in {@code klotski.solver.table} (default {@value #DEFAULT_TABLE_FILE}),
+     * or builds it on the common fork-join pool and writes that file for the next start.
+     */
+    public static Solver load() {
+        long[] starts = openings();
+        long tag = tagOf(starts);
+        Path file = Paths.get(System.getProperty("klotski.solver.table", DEFAULT_TABLE_FILE));
+        try {
+            DistanceTable table = DistanceTable.map(file, tag);
+            if (table != null) {
+                logger.info("Solver table mapped from {}: {} positions", file, table.size());
+                return new Solver(table);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to map solver table {}: {}", file, e.getMessage());
+        }
+
+        Solver solver = build(starts, ForkJoinPool.commonPool());
+        try {
+            solver.table.write(file, tag);
+        } catch (IOException e) {
+            logger.error("Failed to write solver table {}", file, e);
+        }
+        return solver;
+    }
+
+    /**
+     * Builds the table for the given starting boards.
+     */
+    public static Solver build(long[] starts, ForkJoinPool pool) {
+        long startTime = System.currentTimeMillis();
+        long[] states = StateSpaceSearch.explore(starts, pool);
+        DistanceTable table = StateSpaceSearch.solve(states, pool);
+        logger.info("Solver table built: {} positions in {} ms on {} threads",
+                table.size(), System.currentTimeMillis() - startTime, pool.getParallelism());
+        return new Solver(table);
+    }
+
+    public static long[] openings() {
+        long[] starts = new long[OPENINGS.size()];
+        int i = 0;
+        for (String rows : OPENINGS.values()) {
+            starts[i++] = Board.parse(rows);
+        }
+        return starts;
+    }
+
+    // A cached table is only valid for the openings (and move rules) it was built from
+    private static long tagOf(long[] starts) {
+        long tag = TABLE_FORMAT;
+        for (long start : starts) {
+            tag = tag * 31 + start;
+        }
+        return tag;
+    }
+
+    /**
+     * Returns the number of steps to solve a board, {@link DistanceTable#UNSOLVABLE}, or
+     * {@link DistanceTable#UNKNOWN} if the position is not reachable from a standard opening.
+     */
+    public int distance(long board) {
+        return board == Board.INVALID ? DistanceTable.UNKNOWN : table.get(Board.canonical(board));
+    }
+
+    /**
+     * Returns the board after the next step of a shortest solution, or {@link Board#INVALID}
+     * if the board is solved, unsolvable or unknown.
+     */
+    public long hint(long board) {
+        int distance = distance(board);
+        if (distance <= 0 || distance == DistanceTable.UNSOLVABLE) {
+            return Board.INVALID;
+        }
+        long[] successors = new long[Board.MAX_SUCCESSORS];
+        int count = Board.successors(board, successors);
+        for (int i = 0; i < count; i++) {
+            if (distance(successors[i]) == distance - 1) {
+                return successors[i];
+            }
+        }
+        return Board.INVALID;
+    }
+
+    public int size() {
+        return table.size();
+    }
+}
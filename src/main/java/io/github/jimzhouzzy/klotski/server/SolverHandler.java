@@ -0,0 +1,147 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@code GET /solver/distance?board=...} and {@code GET /solver/hint?board=...}.
+ * <p>
+ * The board is given as its 20 cells row by row, using the letters of the text protocol and
+ * {@code .} for empty cells, e.g. {@code GCCGGCCGGYYGGSSGS..S}; spaces and {@code /} between rows
+ * are ignored. The solver table is mapped or built in the background at startup; until it is ready
+ * both endpoints answer 503, and if it fails to load they answer 500.
+ */
+public class SolverHandler implements HttpHandler {
+    private static final Logger logger = LoggerFactory.getLogger(SolverHandler.class);
+    private static final Gson gson = new Gson();
+    private static final String[] DIRECTIONS = {"UP", "RIGHT", "DOWN", "LEFT"};
+
+    private final CompletableFuture<Solver> solver;
+
+    public SolverHandler() {
+        solver = CompletableFuture.supplyAsync(Solver::load);
+        solver.whenComplete((ready, e) -> {
+            if (e != null) {
+                logger.error("Failed to load the solver table", e);
+            }
+        });
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1); // Method not allowed
+            exchange.close();
+            return;
+        }
+        boolean hint = path.equals("/solver/hint");
+        if (!hint && !path.equals("/solver/distance")) {
+            exchange.sendResponseHeaders(404, -1); // Not Found
+            exchange.close();
+            return;
+        }
+
+        if (solver.isCompletedExceptionally()) {
+            send(exchange, 500, Map.of("code", 500, "message", "Solver failed to load"));
+            return;
+        }
+        Solver ready = solver.getNow(null);
+        if (ready == null) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, 503, Map.of("code", 503, "message", "Solver is still starting"));
+            return;
+        }
+
+        long board = parseBoard(parseQuery(exchange.getRequestURI().getQuery()).get("board"));
+        if (board == Board.INVALID) {
+            send(exchange, 400, Map.of("code", 400, "message", "Invalid board"));
+            return;
+        }
+        int distance = ready.distance(board);
+        if (distance == DistanceTable.UNKNOWN) {
+            send(exchange, 404, Map.of("code", 404, "message", "Position not reachable from a standard opening"));
+            return;
+        }
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("code", 200);
+        response.put("solvable", distance != DistanceTable.UNSOLVABLE);
+        if (distance != DistanceTable.UNSOLVABLE) {
+            response.put("distance", distance);
+        }
+        if (hint && distance != DistanceTable.UNSOLVABLE && distance > 0) {
+            long next = ready.hint(board);
+            int move = Board.findMove(board, next);
+            // No step found although the table has a distance: answer without a hint
+            if (move >= 0) {
+                response.put("origin", move >> 2);
+                response.put("direction", DIRECTIONS[move & 3]);
+                response.put("board", toLetters(next));
+            }
+        }
+        send(exchange, 200, response);
+    }
+
+    /**
+     * Parses the 20-letter board format.
+     *
+     * @return the packed board, or {@link Board#INVALID}
+     */
+    static long parseBoard(String letters) {
+        if (letters == null) {
+            return Board.INVALID;
+        }
+        StringBuilder rows = new StringBuilder(Board.CELLS * 2);
+        int cells = 0;
+        for (int i = 0; i < letters.length(); i++) {
+            char c = letters.charAt(i);
+            if (c == ' ' || c == '/' || c == '+') {
+                continue;
+            }
+            rows.append(c).append(++cells % Board.WIDTH == 0 ? '\n' : ' ');
+        }
+        return cells == Board.CELLS ? Board.parse(rows) : Board.INVALID;
+    }
+
+    static String toLetters(long board) {
+        char[] letters = new char[Board.CELLS];
+        for (int i = 0; i < Board.CELLS; i++) {
+            letters[i] = Board.letter(Board.cell(board, i));
+        }
+        return new String(letters);
+    }
+
+    private static void send(HttpExchange exchange, int status, Map<String, ?> body) throws IOException {
+        byte[] response = gson.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                String[] keyValue = pair.split("=");
+                if (keyValue.length == 2) {
+                    params.put(keyValue[0], keyValue[1]);
+                }
+            }
+        }
+        return params;
+    }
+}
@@ -0,0 +1,177 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Level-synchronous parallel breadth-first search over packed, canonical boards.
+ * <p>
+ * Each level's frontier is split into chunks that fork-join workers expand independently; a state
+ * belongs to the next frontier if this worker is the one that added it to the visited set. The
+ * visited set is striped: a state's hash picks one of {@value #STRIPES} small open-addressing
+ * tables, each behind its own lock, so workers rarely contend and each stripe can grow on its own.
+ */
+public final class StateSpaceSearch {
+    private static final int STRIPES = 64;
+    private static final int CHUNK = 256;
+
+    private StateSpaceSearch() {
+    }
+
+    /**
+     * A visited set that also records the level each state was found at.
+     */
+    public static final class VisitedSet {
+        private final DistanceTable[] stripes = new DistanceTable[STRIPES];
+        private final Object[] locks = new Object[STRIPES];
+
+        public VisitedSet(int expected) {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new DistanceTable(Math.max(16, expected / STRIPES));
+                locks[i] = new Object();
+            }
+        }
+
+        private static int stripe(long state) {
+            // High bits of a different multiplier than DistanceTable uses, so stripes do not skew probing
+            return (int) ((state * 0xC2B2AE3D27D4EB4FL) >>> 58);
+        }
+
+        public boolean add(long state, int level) {
+            int i = stripe(state);
+            synchronized (locks[i]) {
+                DistanceTable table = stripes[i];
+                if (table.contains(state)) {
+                    return false;
+                }
+                if (table.isFull()) {
+                    table = table.grow();
+                    stripes[i] = table;
+                }
+                return table.putIfAbsent(state, level);
+            }
+        }
+
+        public int get(long state) {
+            int i = stripe(state);
+            synchronized (locks[i]) {
+                return stripes[i].get(state);
+            }
+        }
+
+        public int size() {
+            int size = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                synchronized (locks[i]) {
+                    size += stripes[i].size();
+                }
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Searches from the sources, adding every state found to {@code visited} with its level
+     * (capped at {@link DistanceTable#MAX_DISTANCE}).
+     *
+     * @return every state found, in order of level
+     */
+    public static long[] search(long[] sources, VisitedSet visited, ForkJoinPool pool) {
+        long[] frontier = new long[sources.length];
+        int count = 0;
+        for (long source : sources) {
+            long state = Board.canonical(source);
+            if (visited.add(state, 0)) {
+                frontier[count++] = state;
+            }
+        }
+        frontier = Arrays.copyOf(frontier, count);
+
+        long[] found = new long[Math.max(16, count)];
+        int size = 0;
+        int level = 0;
+        while (frontier.length > 0) {
+            if (size + frontier.length > found.length) {
+                found = Arrays.copyOf(found, Math.max(found.length * 2, size + frontier.length));
+            }
+            System.arraycopy(frontier, 0, found, size, frontier.length);
+            size += frontier.length;
+            level = Math.min(level + 1, DistanceTable.MAX_DISTANCE);
+            frontier = pool.invoke(new Expand(frontier, 0, frontier.length, visited, level));
+        }
+        return Arrays.copyOf(found, size);
+    }
+
+    /**
+     * Returns the states reachable from the starts.
+     */
+    public static long[] explore(long[] starts, ForkJoinPool pool) {
+        return search(starts, new VisitedSet(1 << 14), pool);
+    }
+
+    /**
+     * Computes the distance of every state to its nearest solved state. The states must be closed
+     * under moves (as {@link #explore} returns them); states with no path to a solution get
+     * {@link DistanceTable#UNSOLVABLE}.
+     */
+    public static DistanceTable solve(long[] states, ForkJoinPool pool) {
+        long[] goals = Arrays.stream(states).filter(Board::isSolved).toArray();
+        VisitedSet distances = new VisitedSet(states.length);
+        search(goals, distances, pool);
+
+        DistanceTable table = new DistanceTable(states.length);
+        for (long state : states) {
+            int distance = distances.get(state);
+            table.putIfAbsent(state, distance == DistanceTable.UNKNOWN ? DistanceTable.UNSOLVABLE : distance);
+        }
+        return table;
+    }
+
+    private static class Expand extends RecursiveTask<long[]> {
+        private final long[] frontier;
+        private final int from;
+        private final int to;
+        private final VisitedSet visited;
+        private final int level;
+
+        Expand(long[] frontier, int from, int to, VisitedSet visited, int level) {
+            this.frontier = frontier;
+            this.from = from;
+            this.to = to;
+            this.visited = visited;
+            this.level = level;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from > CHUNK) {
+                int middle = (from + to) >>> 1;
+                Expand left = new Expand(frontier, from, middle, visited, level);
+                left.fork();
+                long[] right = new Expand(frontier, middle, to, visited, level).compute();
+                long[] leftResult = left.join();
+                long[] joined = Arrays.copyOf(leftResult, leftResult.length + right.length);
+                System.arraycopy(right, 0, joined, leftResult.length, right.length);
+                return joined;
+            }
+
+            long[] next = new long[(to - from) * 4];
+            int count = 0;
+            long[] successors = new long[Board.MAX_SUCCESSORS];
+            for (int i = from; i < to; i++) {
+                int moves = Board.successors(frontier[i], successors);
+                for (int j = 0; j < moves; j++) {
+                    long state = Board.canonical(successors[j]);
+                    if (visited.add(state, level)) {
+                        if (count == next.length) {
+                            next = Arrays.copyOf(next, next.length * 2);
+                        }
+                        next[count++] = state;
+                    }
+                }
+            }
+            return Arrays.copyOf(next, count);
+        }
+    }
+}
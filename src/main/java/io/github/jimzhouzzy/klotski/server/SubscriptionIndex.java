@@ -0,0 +1,166 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Topic index from username to the sockets watching that user's board.
+ * The special {@link #ALL_BOARDS} topic receives every board update (lobby view).
+ * Each topic holds an immutable subscriber array replaced on change, so publishing never locks.
+ */
+public class SubscriptionIndex {
+    public static final String ALL_BOARDS = "*";
+    // Leaderboard rank changes, also sent to ALL_BOARDS; '@' cannot occur in a username
+    public static final String LEADERBOARD = "@leaderboard";
+    private static final ClientSession[] NONE = new ClientSession[0];
+
+    private final Map<String, ClientSession[]> subscribers = new ConcurrentHashMap<>();
+
+    public void subscribe(ClientSession session, String topic) {
+        // compute() serializes writers of one topic; readers keep using the previous array
+        subscribers.compute(topic, (key, array) -> {
+            if (array == null) {
+                return new ClientSession[] {session};
+            }
+            if (indexOf(array, session) >= 0) {
+                return array;
+            }
+            ClientSession[] copy = Arrays.copyOf(array, array.length + 1);
+            copy[array.length] = session;
+            return copy;
+        });
+        session.getTopics().add(topic);
+    }
+
+    public void unsubscribe(ClientSession session, String topic) {
+        removeSubscriber(topic, session);
+        session.getTopics().remove(topic);
+    }
+
+    public void unsubscribeAll(ClientSession session) {
+        for (String topic : session.getTopics()) {
+            removeSubscriber(topic, session);
+        }
+        session.getTopics().clear();
+    }
+
+    private void removeSubscriber(String topic, ClientSession session) {
+        subscribers.computeIfPresent(topic, (key, array) -> {
+            int index = indexOf(array, session);
+            if (index < 0) {
+                return array;
+            }
+            if (array.length == 1) {
+                return null;
+            }
+            ClientSession[] copy = new ClientSession[array.length - 1];
+            System.arraycopy(array, 0, copy, 0, index);
+            System.arraycopy(array, index + 1, copy, index, array.length - index - 1);
+            return copy;
+        });
+    }
+
+    private static int indexOf(ClientSession[] array, ClientSession session) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i] == session) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public ClientSession[] getSubscribers(String topic) {
+        ClientSession[] array = subscribers.get(topic);
+        return array == null ? NONE : array;
+    }
+
+    /**
+     * Delivers a board update to the subscribers of its user and of {@link #ALL_BOARDS}.
+     * A socket subscribed to both only receives the frame once.
+     *
+     * @return the number of sockets the update was queued for
+     */
+    public int publish(BoardUpdate update) {
+        int sent = 0;
+        ClientSession[] direct = getSubscribers(update.getUsername());
+        for (ClientSession session : direct) {
+            session.offer(update);
+            sent++;
+        }
+        for (ClientSession session : getSubscribers(ALL_BOARDS)) {
+            if (direct.length > 0 && session.getTopics().contains(update.getUsername())) {
+                continue;
+            }
+            session.offer(update);
+            sent++;
+        }
+        return sent;
+    }
+
+    /**
+     * Parses a comma separated topic list such as {@code "jim,alice"} or {@code "*"}.
+     */
+    public static List<String> parseTopics(String list) {
+        List<String> topics = new ArrayList<>();
+        if (list == null) {
+            return topics;
+        }
+        for (String topic : list.split(",")) {
+            topic = topic.trim();
+            if (!topic.isEmpty()) {
+                topics.add(topic);
+            }
+        }
+        return topics;
+    }
+
+    /**
+     * Extracts the topics requested in a handshake resource descriptor.
+     * Both {@code /jim} and {@code /?subscribe=jim,alice} are accepted.
+     */
+    public static List<String> parseResourceDescriptor(String descriptor) {
+        if (descriptor == null) {
+            return new ArrayList<>();
+        }
+        String path = descriptor;
+        String query = null;
+        int queryStart = descriptor.indexOf('?');
+        if (queryStart >= 0) {
+            path = descriptor.substring(0, queryStart);
+            query = descriptor.substring(queryStart + 1);
+        }
+
+        List<String> topics = parseTopics(path.startsWith("/") ? path.substring(1) : path);
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                if (pair.startsWith("subscribe=")) {
+                    topics.addAll(parseTopics(pair.substring("subscribe=".length())));
+                }
+            }
+        }
+        return topics;
+    }
+
+    /**
+     * Extracts {@code replay=<n>}, the number of past moves a handshake asks for, or 0.
+     */
+    public static int parseReplayCount(String descriptor) {
+        int queryStart = descriptor == null ? -1 : descriptor.indexOf('?');
+        if (queryStart < 0) {
+            return 0;
+        }
+        for (String pair : descriptor.substring(queryStart + 1).split("&")) {
+            if (pair.startsWith("replay=")) {
+                try {
+                    return Math.max(0, Integer.parseInt(pair.substring("replay=".length())));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,587 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * {@link Backplane} over plain TCP between server nodes, with no broker, e.g. two nodes on one box:
+ * <pre>
+ * -Dklotski.backplane=tcp -Dklotski.backplane.secret=... -Dklotski.backplane.port=7002 -Dklotski.backplane.peers=localhost:7102
+ * -Dklotski.backplane=tcp -Dklotski.backplane.secret=... -Dklotski.backplane.port=7102 -Dklotski.backplane.peers=localhost:7002
+ * </pre>
+ * (with different {@code klotski.*.port}s and working directories). Every node dials every peer in
+ * {@code klotski.backplane.peers} and sends its events on that connection only, so the nodes form a
+ * full mesh and an event travels one hop.
+ * <p>
+ * A node listens on loopback unless {@code klotski.backplane.bind} names another address, and accepts at
+ * most {@code klotski.backplane.maxConnections} connections. Peers prove they know the shared
+ * {@code klotski.backplane.secret}: the accepting node sends a random nonce, and every frame after it
+ * carries an HMAC-SHA256 over the nonce, the frame's sequence number on the connection and the frame, so
+ * frames can be neither forged nor replayed. A connection is dropped at the first frame that fails the
+ * check, and one that has not said hello within {@value #HANDSHAKE_MILLIS} ms.
+ * <p>
+ * Each peer has a writer thread fed by a queue of {@code klotski.backplane.queue} encoded frames; the
+ * publishing thread only encodes and enqueues, and a full queue drops the frame rather than wait.
+ * A lost connection is redialled every second. After each (re)connect the node first announces its
+ * online users, since the peer forgets them when the previous connection went down.
+ * <p>
+ * A frame is a length, a type byte and the fields written with {@link DataOutputStream}, followed by its
+ * HMAC; the length lets a node skip frame types it does not know.
+ */
+public class TcpBackplane implements Backplane {
+    private static final Logger logger = LoggerFactory.getLogger(TcpBackplane.class);
+    private static final int QUEUE = Integer.getInteger("klotski.backplane.queue", 10_000);
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int HANDSHAKE_MILLIS = 5000;
+    private static final int MAX_FRAME_BYTES = 64 * 1024;
+    private static final int MAX_CONNECTIONS = Integer.getInteger("klotski.backplane.maxConnections", 16);
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_BYTES = 32;
+    private static final int NONCE_BYTES = 16;
+
+    private static final byte HELLO = 0;
+    private static final byte BOARD = 1;
+    private static final byte PRESENCE = 2;
+    private static final byte TOKEN = 3;
+    private static final byte TOKEN_REVOKED = 4;
+    private static final byte USER = 5;
+
+    private static final Metrics.Counter SENT = Metrics.counter("klotski_backplane_frames_total",
+            "Backplane frames by direction", "direction=\"sent\"");
+    private static final Metrics.Counter RECEIVED = Metrics.counter("klotski_backplane_frames_total",
+            "Backplane frames by direction", "direction=\"received\"");
+    private static final Metrics.Counter DROPPED = Metrics.counter("klotski_backplane_frames_total",
+            "Backplane frames by direction", "direction=\"dropped\"");
+    private static final Metrics.Counter REFUSED = Metrics.counter("klotski_backplane_refused_total",
+            "Incoming backplane connections refused for a bad frame or MAC, or over the connection limit", "");
+
+    private final String nodeId;
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+    private final ServerSocket serverSocket;
+    private final List<Peer> peers = new ArrayList<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Set<String> onlineUsers = ConcurrentHashMap.newKeySet();
+    // The newest incoming connection of each node; only its loss means the node is down
+    private final Map<String, Socket> incoming = new ConcurrentHashMap<>();
+    private final AtomicInteger readerCount = new AtomicInteger();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private volatile boolean closed;
+
+    public TcpBackplane(String nodeId, InetAddress bind, int port, byte[] secret, List<InetSocketAddress> peerAddresses)
+            throws IOException {
+        if (secret.length == 0) {
+            throw new IllegalArgumentException("The backplane secret is empty");
+        }
+        this.nodeId = nodeId;
+        key = new SecretKeySpec(secret, MAC_ALGORITHM);
+        newMac(); // fail now if HMAC-SHA256 is missing
+        serverSocket = new ServerSocket(port, 50, bind);
+        Thread acceptor = new Thread(this::accept, "backplane-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (InetSocketAddress address : peerAddresses) {
+            Peer peer = new Peer(address);
+            peers.add(peer);
+            peer.thread.start();
+        }
+        Metrics.gauge("klotski_backplane_peers_connected", "Peers this node is connected to", "",
+                () -> peers.stream().filter(peer -> peer.connected).count());
+        logger.info("Backplane node {} listening on {}:{}, peers {}", nodeId, bind.getHostAddress(), port,
+                peerAddresses);
+    }
+
+    /**
+     * Opens the backplane configured by {@code klotski.backplane.secret}, {@code klotski.backplane.bind},
+     * {@code klotski.backplane.port}, {@code klotski.backplane.peers} and {@code klotski.node} (the host
+     * name and port by default).
+     */
+    public static TcpBackplane open() throws IOException {
+        String secret = System.getProperty("klotski.backplane.secret", "");
+        if (secret.isEmpty()) {
+            throw new IllegalArgumentException("klotski.backplane.secret must be set for the tcp backplane");
+        }
+        InetAddress bind = InetAddress.getByName(System.getProperty("klotski.backplane.bind", "127.0.0.1"));
+        int port = Integer.getInteger("klotski.backplane.port", 7002);
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : System.getProperty("klotski.backplane.peers", "").split(",")) {
+            peer = peer.trim();
+            if (!peer.isEmpty()) {
+                int colon = peer.lastIndexOf(':');
+                peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+            }
+        }
+        String nodeId = System.getProperty("klotski.node", InetAddress.getLocalHost().getHostName() + ":" + port);
+        return new TcpBackplane(nodeId, bind, port, secret.getBytes(StandardCharsets.UTF_8), peers);
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void publishBoard(BoardUpdate update) {
+        if (peers.isEmpty()) {
+            return;
+        }
+        Frame frame = new Frame(BOARD);
+        frame.writeUTF(update.getUsername());
+        frame.writeUTF(update.getHeader());
+        frame.writeBoolean(update.getRows() != null);
+        if (update.getRows() != null) {
+            frame.writeUTF(update.getRows());
+        }
+        frame.writeLong(update.getBoard());
+        send(frame.toBytes());
+    }
+
+    @Override
+    public void publishPresence(String username, boolean online) {
+        if (online) {
+            onlineUsers.add(username);
+        } else {
+            onlineUsers.remove(username);
+        }
+        send(presenceFrame(username, online));
+    }
+
+    private static byte[] presenceFrame(String username, boolean online) {
+        Frame frame = new Frame(PRESENCE);
+        frame.writeUTF(username);
+        frame.writeBoolean(online);
+        return frame.toBytes();
+    }
+
+    @Override
+    public void publishToken(String hash, String username, long expiryTime) {
+        Frame frame = new Frame(TOKEN);
+        frame.writeUTF(hash);
+        frame.writeUTF(username);
+        frame.writeLong(expiryTime);
+        send(frame.toBytes());
+    }
+
+    @Override
+    public void publishTokenRevoked(String hash) {
+        Frame frame = new Frame(TOKEN_REVOKED);
+        frame.writeUTF(hash);
+        send(frame.toBytes());
+    }
+
+    @Override
+    public void publishUser(String username, String password) {
+        Frame frame = new Frame(USER);
+        frame.writeUTF(username);
+        frame.writeUTF(password);
+        send(frame.toBytes());
+    }
+
+    private void send(byte[] frame) {
+        if (frame == null) {
+            // Larger than a peer accepts; sending it would only get the connection dropped
+            DROPPED.add(peers.size());
+            return;
+        }
+        for (Peer peer : peers) {
+            if (!peer.queue.offer(frame)) {
+                DROPPED.inc();
+            }
+        }
+    }
+
+    /**
+     * A frame being encoded. The length in front is filled in by {@link #toBytes}; the stream is in
+     * memory, so the writes only fail for a string too long to encode, which makes the frame too large.
+     */
+    private static class Frame {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private boolean tooLarge;
+
+        Frame(byte type) {
+            writeInt(0);
+            bytes.write(type);
+        }
+
+        void writeInt(int v) {
+            try {
+                out.writeInt(v);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void writeBoolean(boolean v) {
+            bytes.write(v ? 1 : 0);
+        }
+
+        void writeLong(long v) {
+            try {
+                out.writeLong(v);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void writeUTF(String s) {
+            try {
+                out.writeUTF(s);
+            } catch (UTFDataFormatException e) {
+                tooLarge = true;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Returns the encoded frame, or null if it is larger than a peer accepts.
+         */
+        byte[] toBytes() {
+            if (tooLarge || bytes.size() - 4 > MAX_FRAME_BYTES) {
+                return null;
+            }
+            byte[] frame = bytes.toByteArray();
+            int length = frame.length - 4;
+            frame[0] = (byte) (length >>> 24);
+            frame[1] = (byte) (length >>> 16);
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+            return frame;
+        }
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+        }
+    }
+
+    // The MAC of the frame in frame[offset, offset + length), the length prefix included
+    private static byte[] macOf(Mac mac, byte[] nonce, long sequence, byte[] frame, int offset, int length) {
+        mac.update(nonce);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mac.update((byte) (sequence >>> shift));
+        }
+        mac.update(frame, offset, length);
+        return mac.doFinal();
+    }
+
+    /**
+     * The outgoing connection to one peer and the frames waiting for it.
+     */
+    private class Peer implements Runnable {
+        final InetSocketAddress address;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE);
+        final Thread thread;
+        volatile boolean connected;
+        volatile Socket socket;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+            thread = new Thread(this, "backplane-peer-" + address.getHostString() + ":" + address.getPort());
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<byte[]> batch = new ArrayList<>();
+            boolean failed = false;
+            while (!closed) {
+                try (Socket connection = new Socket()) {
+                    socket = connection;
+                    connection.connect(address, CONNECT_TIMEOUT_MILLIS);
+                    connection.setTcpNoDelay(true);
+                    connection.setSoTimeout(HANDSHAKE_MILLIS);
+                    byte[] nonce = new byte[NONCE_BYTES];
+                    new DataInputStream(connection.getInputStream()).readFully(nonce);
+                    connection.setSoTimeout(0);
+                    FrameWriter out = new FrameWriter(connection, nonce);
+                    Frame hello = new Frame(HELLO);
+                    hello.writeUTF(nodeId);
+                    out.write(hello.toBytes());
+                    for (String username : onlineUsers) {
+                        byte[] presence = presenceFrame(username, true);
+                        if (presence != null) {
+                            out.write(presence);
+                        }
+                    }
+                    out.flush();
+                    connected = true;
+                    failed = false;
+                    logger.info("Backplane connected to {}", address);
+                    while (!closed) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, 1023);
+                        for (byte[] frame : batch) {
+                            out.write(frame);
+                        }
+                        out.flush();
+                        SENT.add(batch.size());
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    // Frames of the failed batch are lost, like those dropped while the queue was full
+                    DROPPED.add(batch.size());
+                    batch.clear();
+                    if (connected || !failed) {
+                        logger.warn("Backplane connection to {} failed: {}", address, e.getMessage());
+                    }
+                    failed = true;
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                }
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes frames to a peer, each followed by its MAC.
+     */
+    private class FrameWriter {
+        private final DataOutputStream out;
+        private final Mac mac = newMac();
+        private final byte[] nonce;
+        private long sequence;
+
+        FrameWriter(Socket socket, byte[] nonce) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            this.nonce = nonce;
+        }
+
+        void write(byte[] frame) throws IOException {
+            out.write(frame);
+            out.write(macOf(mac, nonce, sequence++, frame, 0, frame.length));
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (connectionCount.incrementAndGet() > MAX_CONNECTIONS) {
+                    connectionCount.decrementAndGet();
+                    REFUSED.inc();
+                    logger.warn("Backplane refused a connection from {}: too many connections",
+                            socket.getRemoteSocketAddress());
+                    socket.close();
+                    continue;
+                }
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> read(socket), "backplane-reader-" + readerCount.incrementAndGet());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.error("Backplane failed to accept a connection", e);
+                }
+            }
+        }
+    }
+
+    private void read(Socket socket) {
+        try {
+            readFrames(socket);
+        } finally {
+            connectionCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Reads and dispatches the frames of one incoming connection until it ends.
+     */
+    private void readFrames(Socket socket) {
+        String node = null;
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            byte[] nonce = new byte[NONCE_BYTES];
+            random.nextBytes(nonce);
+            socket.getOutputStream().write(nonce);
+            socket.setSoTimeout(HANDSHAKE_MILLIS);
+            Mac mac = newMac();
+            long sequence = 0;
+            byte[] buffer = new byte[256];
+            byte[] received = new byte[MAC_BYTES];
+            while (true) {
+                int length = in.readInt();
+                if (length < 1 || length > MAX_FRAME_BYTES) {
+                    throw new RefusedException("invalid frame length " + length);
+                }
+                if (length + 4 > buffer.length) {
+                    buffer = new byte[Math.max(length + 4, buffer.length * 2)];
+                }
+                buffer[0] = (byte) (length >>> 24);
+                buffer[1] = (byte) (length >>> 16);
+                buffer[2] = (byte) (length >>> 8);
+                buffer[3] = (byte) length;
+                in.readFully(buffer, 4, length);
+                in.readFully(received);
+                if (!MessageDigest.isEqual(received, macOf(mac, nonce, sequence++, buffer, 0, length + 4))) {
+                    throw new RefusedException("bad MAC");
+                }
+                RECEIVED.inc();
+                DataInputStream frame = new DataInputStream(new ByteArrayInputStream(buffer, 5, length - 1));
+                byte type = buffer[4];
+                if (type == HELLO) {
+                    if (node != null) {
+                        throw new RefusedException("second hello");
+                    }
+                    node = frame.readUTF();
+                    socket.setSoTimeout(0); // a peer with nothing to say stays connected
+                    incoming.put(node, socket);
+                    nodeDown(node); // the presence frames that follow replace what it said before
+                    logger.info("Backplane node {} connected from {}", node, socket.getRemoteSocketAddress());
+                } else if (node == null) {
+                    throw new RefusedException("frame before hello");
+                } else {
+                    dispatch(node, type, frame);
+                }
+            }
+        } catch (EOFException e) {
+            // the peer closed the connection
+        } catch (RefusedException e) {
+            REFUSED.inc();
+            logger.warn("Backplane dropped the connection from {}: {}", socket.getRemoteSocketAddress(), e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            if (!closed) {
+                logger.warn("Backplane connection from {} failed: {}", node != null ? node : socket.getRemoteSocketAddress(),
+                        e.toString());
+            }
+        } finally {
+            if (node != null && incoming.remove(node, socket)) {
+                logger.info("Backplane node {} disconnected", node);
+                nodeDown(node);
+            }
+        }
+    }
+
+    /**
+     * A connection that broke the protocol, possibly not a peer at all.
+     */
+    private static class RefusedException extends IOException {
+        RefusedException(String message) {
+            super(message);
+        }
+    }
+
+    private void dispatch(String node, byte type, DataInputStream frame) throws IOException {
+        switch (type) {
+            case BOARD: {
+                String username = frame.readUTF();
+                String header = frame.readUTF();
+                String rows = frame.readBoolean() ? frame.readUTF() : null;
+                long board = frame.readLong();
+                notifyListeners(listener -> listener.onBoard(username, header, rows, board));
+                break;
+            }
+            case PRESENCE: {
+                String username = frame.readUTF();
+                boolean online = frame.readBoolean();
+                notifyListeners(listener -> listener.onPresence(node, username, online));
+                break;
+            }
+            case TOKEN: {
+                String hash = frame.readUTF();
+                String username = frame.readUTF();
+                long expiryTime = frame.readLong();
+                notifyListeners(listener -> listener.onToken(hash, username, expiryTime));
+                break;
+            }
+            case TOKEN_REVOKED: {
+                String hash = frame.readUTF();
+                notifyListeners(listener -> listener.onTokenRevoked(hash));
+                break;
+            }
+            case USER: {
+                String username = frame.readUTF();
+                String password = frame.readUTF();
+                notifyListeners(listener -> listener.onUser(username, password));
+                break;
+            }
+            default:
+                // A newer node; skip what this one does not understand
+                break;
+        }
+    }
+
+    private void nodeDown(String node) {
+        notifyListeners(listener -> listener.onNodeDown(node));
+    }
+
+    // A failing listener must not take the connection down with it, the other events still apply
+    private void notifyListeners(Consumer<Listener> call) {
+        for (Listener listener : listeners) {
+            try {
+                call.accept(listener);
+            } catch (RuntimeException e) {
+                logger.error("Backplane listener failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Peer peer : peers) {
+            peer.thread.interrupt();
+            Socket socket = peer.socket;
+            if (socket != null) {
+                socket.close();
+            }
+        }
+        for (Socket socket : incoming.values()) {
+            socket.close();
+        }
+    }
+}
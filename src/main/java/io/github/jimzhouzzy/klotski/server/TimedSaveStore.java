@@ -0,0 +1,82 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link SaveStore} that records how long each operation of the store it wraps takes, as
+ * {@code klotski_save_store_duration_seconds{op=...}}.
+ */
+class TimedSaveStore implements SaveStore {
+    private static final Metrics.Histogram PUT = timer("put");
+    private static final Metrics.Histogram READ = timer("read");
+    private static final Metrics.Histogram LIST = timer("list");
+    private static final Metrics.Histogram DELETE = timer("delete");
+
+    private final SaveStore store;
+
+    TimedSaveStore(SaveStore store) {
+        this.store = store;
+    }
+
+    private static Metrics.Histogram timer(String op) {
+        return Metrics.timer("klotski_save_store_duration_seconds", "Time spent in save store operations",
+                "op=\"" + op + "\"");
+    }
+
+    @Override
+    public void put(GameSave save) throws IOException {
+        long start = System.nanoTime();
+        try {
+            store.put(save);
+        } finally {
+            PUT.recordSince(start);
+        }
+    }
+
+    @Override
+    public void delete(String username, String slot) throws IOException {
+        long start = System.nanoTime();
+        try {
+            store.delete(username, slot);
+        } finally {
+            DELETE.recordSince(start);
+        }
+    }
+
+    @Override
+    public List<SaveInfo> list(String username) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return store.list(username);
+        } finally {
+            LIST.recordSince(start);
+        }
+    }
+
+    @Override
+    public GameSave read(String username, String slot) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return store.read(username, slot);
+        } finally {
+            READ.recordSince(start);
+        }
+    }
+
+    @Override
+    public Set<String> users() {
+        return store.users();
+    }
+
+    @Override
+    public List<String> recentUsers(int limit) {
+        return store.recentUsers(limit);
+    }
+
+    @Override
+    public void close() throws IOException {
+        store.close();
+    }
+}
@@ -0,0 +1,287 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Login tokens with an expiry index.
+ * <p>
+ * Tokens are filed into time buckets by expiry ({@code klotski.tokens.sweepSeconds} wide); a background
+ * sweep drops every bucket that has fully expired, so expired tokens cost nothing until then and are
+ * removed without scanning live ones. Each user keeps at most {@code klotski.tokens.maxPerUser}
+ * tokens, the oldest is revoked when a new one would exceed that.
+ * <p>
+ * Only SHA-256 hashes of the tokens are held. With {@code -Dklotski.tokens.file=<path>} they are
+ * also written to disk on every sweep that saw a change and at shutdown, so a restart keeps clients
+ * logged in.
+ * <p>
+ * On a {@link Backplane} every issued or revoked token hash is sent to the other nodes, so a token works
+ * on any of them.
+ */
+public class TokenStore implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(TokenStore.class);
+    public static final long TOKEN_LIFETIME_MILLIS = 30L * 24 * 60 * 60 * 1000; // 1 month
+    private static final int MAX_TOKENS_PER_USER = Integer.getInteger("klotski.tokens.maxPerUser", 10);
+    private static final long SWEEP_MILLIS = Long.getLong("klotski.tokens.sweepSeconds", 60) * 1000;
+
+    private final Gson gson = new Gson();
+    private final Path file; // null when tokens are not persisted
+    private final Map<String, Token> tokens = new ConcurrentHashMap<>(); // by token hash
+    private final Map<String, ArrayDeque<Token>> userTokens = new ConcurrentHashMap<>(); // oldest first
+    private final ConcurrentSkipListMap<Long, Set<Token>> expiryBuckets = new ConcurrentSkipListMap<>();
+    private volatile boolean dirty;
+    private volatile Backplane backplane; // null until tokens are shared
+    private final ScheduledExecutorService sweeper;
+
+    private static class Token {
+        final String hash;
+        final String username;
+        final long expiryTime;
+
+        Token(String hash, String username, long expiryTime) {
+            this.hash = hash;
+            this.username = username;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    public TokenStore(Path file) throws IOException {
+        this.file = file;
+        if (file != null && Files.exists(file)) {
+            load();
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "token-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens the store configured by {@code -Dklotski.tokens.file}, in memory only if it is not set.
+     */
+    public static TokenStore open() throws IOException {
+        String file = System.getProperty("klotski.tokens.file");
+        return new TokenStore(file == null || file.isEmpty() ? null : Paths.get(file));
+    }
+
+    /**
+     * Shares the tokens issued and revoked from now on with the other nodes on {@code backplane}, and
+     * takes over theirs.
+     */
+    public void setBackplane(Backplane backplane) {
+        this.backplane = backplane;
+        backplane.addListener(new Backplane.Listener() {
+            @Override
+            public void onToken(String hash, String username, long expiryTime) {
+                if (expiryTime > System.currentTimeMillis() && !tokens.containsKey(hash)) {
+                    add(new Token(hash, username, expiryTime));
+                }
+            }
+
+            @Override
+            public void onTokenRevoked(String hash) {
+                Token info = tokens.get(hash);
+                if (info != null) {
+                    remove(info);
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates a new token for a user, revoking the user's oldest token if they hold too many.
+     */
+    public String issue(String username) {
+        String token = UUID.randomUUID().toString();
+        Token info = new Token(hash(token), username, System.currentTimeMillis() + TOKEN_LIFETIME_MILLIS);
+        add(info);
+        Backplane backplane = this.backplane;
+        if (backplane != null) {
+            backplane.publishToken(info.hash, info.username, info.expiryTime);
+        }
+        return token;
+    }
+
+    /**
+     * Returns the user a token belongs to, or null if it is unknown or expired.
+     */
+    public String validate(String token) {
+        Token info = tokens.get(hash(token));
+        if (info == null) {
+            return null;
+        }
+        if (info.expiryTime <= System.currentTimeMillis()) {
+            remove(info);
+            return null;
+        }
+        return info.username;
+    }
+
+    public void revoke(String token) {
+        Token info = tokens.get(hash(token));
+        if (info != null) {
+            remove(info);
+            Backplane backplane = this.backplane;
+            if (backplane != null) {
+                backplane.publishTokenRevoked(info.hash);
+            }
+        }
+    }
+
+    public int size() {
+        return tokens.size();
+    }
+
+    private void add(Token token) {
+        tokens.put(token.hash, token);
+        expiryBuckets.computeIfAbsent(bucketOf(token.expiryTime), k -> ConcurrentHashMap.newKeySet()).add(token);
+        List<Token> evicted = new ArrayList<>(1);
+        // compute() keeps a user's deque from being dropped while a token is added to it
+        userTokens.compute(token.username, (username, deque) -> {
+            if (deque == null) {
+                deque = new ArrayDeque<>();
+            }
+            deque.addLast(token);
+            while (deque.size() > MAX_TOKENS_PER_USER) {
+                evicted.add(deque.pollFirst());
+            }
+            return deque;
+        });
+        for (Token old : evicted) {
+            forget(old);
+        }
+        dirty = true;
+    }
+
+    private void remove(Token token) {
+        userTokens.computeIfPresent(token.username, (username, deque) -> {
+            deque.remove(token);
+            return deque.isEmpty() ? null : deque;
+        });
+        forget(token);
+    }
+
+    // Drops a token from the lookup map and the expiry index, but not from its user's deque
+    private void forget(Token token) {
+        if (tokens.remove(token.hash, token)) {
+            dirty = true;
+        }
+        Set<Token> bucket = expiryBuckets.get(bucketOf(token.expiryTime));
+        if (bucket != null) {
+            bucket.remove(token);
+        }
+    }
+
+    private static long bucketOf(long expiryTime) {
+        return expiryTime / SWEEP_MILLIS;
+    }
+
+    /**
+     * Drops every bucket whose tokens have all expired. Tokens in the current bucket are
+     * caught by {@link #validate} until the next sweep.
+     */
+    void sweep() {
+        long current = bucketOf(System.currentTimeMillis());
+        int removed = 0;
+        Map.Entry<Long, Set<Token>> bucket;
+        while ((bucket = expiryBuckets.firstEntry()) != null && bucket.getKey() < current) {
+            expiryBuckets.remove(bucket.getKey(), bucket.getValue());
+            for (Token token : bucket.getValue()) {
+                remove(token);
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            logger.debug("Swept {} expired tokens", removed);
+        }
+        if (file != null && dirty) {
+            try {
+                save();
+            } catch (IOException e) {
+                logger.error("Failed to save tokens", e);
+            }
+        }
+    }
+
+    private synchronized void save() throws IOException {
+        dirty = false;
+        List<Token> snapshot = new ArrayList<>(tokens.values());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            gson.toJson(snapshot, writer);
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void load() throws IOException {
+        List<Token> saved;
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            saved = gson.fromJson(reader, new TypeToken<List<Token>>() {}.getType());
+        } catch (RuntimeException e) {
+            logger.warn("Ignoring unreadable token file {}: {}", file, e.getMessage());
+            return;
+        }
+        if (saved == null) {
+            return;
+        }
+        // Oldest first, so the per-user cap keeps the newest tokens
+        saved.sort(Comparator.comparingLong(token -> token.expiryTime));
+        long now = System.currentTimeMillis();
+        for (Token token : saved) {
+            if (token.expiryTime > now) {
+                add(token);
+            }
+        }
+        dirty = false;
+        logger.info("Loaded {} tokens from {}", tokens.size(), file);
+    }
+
+    private static String hash(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sweeper.shutdownNow();
+        if (file != null) {
+            save();
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package io.github.jimzhouzzy.klotski.server;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead-logged user database.
+ * <p>
+ * {@code userDatabase.json} is a snapshot of all users; every change since the snapshot is appended
+ * to {@code userDatabase.log} and fsynced before it shows in the users map, so no reader sees a user
+ * that could still be lost. Writers that arrive while an fsync is running share the next one (group
+ * commit). A background checkpoint writes a new snapshot (temp file + atomic rename) and starts an
+ * empty log, so startup replays snapshot + log.
+ * <p>
+ * Log record layout: {@code [length:int][crc32:int][op:byte][username:utf][password:utf]}.
+ */
+public class UserStore implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(UserStore.class);
+    private static final boolean FSYNC = Boolean.parseBoolean(System.getProperty("klotski.users.fsync", "true"));
+    private static final long CHECKPOINT_SECONDS = Long.getLong("klotski.users.checkpointSeconds", 60);
+    private static final int HEADER_BYTES = 8;
+    private static final byte PUT = 1;
+    private static final int NAME_LOCKS = 64;
+    private static final Metrics.Histogram APPEND_TIME = Metrics.timer("klotski_user_store_append_duration_seconds",
+            "Time to append a user record and wait until it is on disk", "");
+
+    private final Gson gson = new Gson();
+    private final Map<String, String> users;
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final Path sealedLogFile; // the log being folded into a snapshot
+    // Writers of one name take turns from check to publish, so the map and the log agree on its order
+    private final Object[] nameLocks = new Object[NAME_LOCKS];
+
+    private final Object appendLock = new Object();
+    private FileChannel log; // guarded by appendLock
+    private long appendedRecords; // guarded by appendLock
+    private long checkpointedRecords; // guarded by appendLock
+    private final Map<String, String> unpublished = new HashMap<>(); // guarded by appendLock, logged but not in users
+
+    private final Object syncLock = new Object();
+    private long syncedRecords; // guarded by syncLock
+    private boolean syncing; // guarded by syncLock
+
+    private final ScheduledExecutorService checkpointer;
+
+    /**
+     * Opens the store and loads every user into {@code users}, which the store keeps up to date.
+     */
+    public UserStore(Path snapshotFile, Map<String, String> users) throws IOException {
+        this.users = users;
+        this.snapshotFile = snapshotFile;
+        this.logFile = snapshotFile.resolveSibling(baseName(snapshotFile) + ".log");
+        this.sealedLogFile = snapshotFile.resolveSibling(baseName(snapshotFile) + ".log.old");
+        for (int i = 0; i < NAME_LOCKS; i++) {
+            nameLocks[i] = new Object();
+        }
+
+        if (Files.exists(snapshotFile)) {
+            try (Reader reader = Files.newBufferedReader(snapshotFile, StandardCharsets.UTF_8)) {
+                Map<String, String> data = gson.fromJson(reader, new TypeToken<Map<String, String>>() {}.getType());
+                if (data != null) {
+                    users.putAll(data);
+                }
+            }
+        } else {
+            logger.info("No existing user database found. Starting fresh.");
+        }
+        // A checkpoint that crashed before its snapshot was written leaves the sealed log behind
+        boolean sealed = Files.exists(sealedLogFile);
+        if (sealed) {
+            try (FileChannel channel = FileChannel.open(sealedLogFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                replay(channel);
+            }
+        }
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        appendedRecords = replay(log);
+        if (sealed) {
+            // Fold it into a snapshot before anything is written, so no later checkpoint has to seal over it
+            writeSnapshot(new HashMap<>(users));
+            Files.delete(sealedLogFile);
+        }
+
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "user-db-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                logger.error("Failed to checkpoint user database", e);
+            }
+        }, CHECKPOINT_SECONDS, CHECKPOINT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static String baseName(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /**
+     * Adds a user unless the name is taken.
+     *
+     * @return false if the user already exists
+     */
+    public boolean putIfAbsent(String username, String password) throws IOException {
+        synchronized (lockOf(username)) {
+            if (users.containsKey(username)) {
+                return false;
+            }
+            append(username, password);
+        }
+        return true;
+    }
+
+    /**
+     * Changes the password of a user, unless it is no longer {@code expected}.
+     *
+     * @return false if the stored password was not {@code expected}
+     */
+    public boolean replace(String username, String expected, String password) throws IOException {
+        synchronized (lockOf(username)) {
+            if (!expected.equals(users.get(username))) {
+                return false;
+            }
+            append(username, password);
+        }
+        return true;
+    }
+
+    /**
+     * Adds or replaces a user.
+     */
+    public void put(String username, String password) throws IOException {
+        synchronized (lockOf(username)) {
+            append(username, password);
+        }
+    }
+
+    /**
+     * Adds or replaces a user that another node sent, unless it is stored like that already.
+     */
+    public void putReplica(String username, String password) throws IOException {
+        synchronized (lockOf(username)) {
+            if (!password.equals(users.get(username))) {
+                put(username, password);
+            }
+        }
+    }
+
+    private Object lockOf(String username) {
+        return nameLocks[(username.hashCode() & Integer.MAX_VALUE) % NAME_LOCKS];
+    }
+
+    /**
+     * Logs a user and puts it into the map once the record is on disk. The caller holds the name's lock.
+     */
+    private void append(String username, String password) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // length, filled in below
+        out.writeInt(0); // crc, filled in below
+        out.writeByte(PUT);
+        out.writeUTF(username);
+        out.writeUTF(password);
+        out.flush();
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, HEADER_BYTES, record.length - HEADER_BYTES);
+        ByteBuffer.wrap(record).putInt(record.length - HEADER_BYTES).putInt((int) crc.getValue());
+
+        long start = System.nanoTime();
+        long sequence;
+        synchronized (appendLock) {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                log.write(buffer, log.size());
+            }
+            sequence = ++appendedRecords;
+            unpublished.put(username, password);
+        }
+        boolean synced = false;
+        try {
+            awaitSync(sequence);
+            synced = true;
+        } finally {
+            synchronized (appendLock) {
+                unpublished.remove(username);
+                if (synced) {
+                    users.put(username, password);
+                }
+            }
+        }
+        APPEND_TIME.recordSince(start);
+    }
+
+    /**
+     * Returns once the given record is on disk. The first waiter runs the fsync for everyone
+     * queued behind it; the others wait for that fsync instead of issuing their own.
+     */
+    private void awaitSync(long sequence) throws IOException {
+        while (true) {
+            synchronized (syncLock) {
+                boolean interrupted = false;
+                while (syncing && syncedRecords < sequence) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (syncedRecords >= sequence) {
+                    return;
+                }
+                syncing = true;
+            }
+
+            long target;
+            FileChannel channel;
+            synchronized (appendLock) {
+                target = appendedRecords;
+                channel = log;
+            }
+            boolean synced = false;
+            try {
+                if (FSYNC) {
+                    channel.force(false);
+                }
+                synced = true;
+            } catch (ClosedChannelException e) {
+                // A checkpoint swapped the log and synced it; the loop sees the new sync count
+            } finally {
+                synchronized (syncLock) {
+                    syncing = false;
+                    if (synced) {
+                        syncedRecords = Math.max(syncedRecords, target);
+                    }
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the records of a log to the users map, cutting off a torn record at the end.
+     *
+     * @return the number of records applied
+     */
+    private long replay(FileChannel channel) throws IOException {
+        long position = 0;
+        long records = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (position + HEADER_BYTES <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int length = header.getInt();
+            int expectedCrc = header.getInt();
+            if (length <= 0 || position + HEADER_BYTES + length > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(channel, body, position + HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            crc.update(body.array());
+            if ((int) crc.getValue() != expectedCrc) {
+                break;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array()));
+            if (in.readByte() == PUT) {
+                users.put(in.readUTF(), in.readUTF());
+            }
+            position += HEADER_BYTES + length;
+            records++;
+        }
+        if (position < size) {
+            logger.warn("Truncating damaged user database log at byte {}", position);
+            channel.truncate(position);
+        }
+        return records;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of user database log");
+            }
+        }
+    }
+
+    /**
+     * Folds the log into a new snapshot. Writers are only held up while the log is swapped.
+     */
+    public synchronized void checkpoint() throws IOException {
+        Map<String, String> snapshot;
+        synchronized (appendLock) {
+            boolean sealed = Files.exists(sealedLogFile);
+            if (appendedRecords == checkpointedRecords && log.size() == 0 && !sealed) {
+                return;
+            }
+            // Every record in the sealed log is durable before it is renamed
+            if (FSYNC) {
+                log.force(false);
+            }
+            synchronized (syncLock) {
+                syncedRecords = appendedRecords;
+                syncLock.notifyAll();
+            }
+            // A sealed log left by a failed checkpoint is never replaced: the snapshot below covers it and
+            // the live log, which is sealed next time
+            if (!sealed) {
+                log.close();
+                Files.move(logFile, sealedLogFile, StandardCopyOption.ATOMIC_MOVE);
+                log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                checkpointedRecords = appendedRecords;
+            }
+            // Records already in the log count even if their writers have not put them into the map yet
+            snapshot = new HashMap<>(users);
+            snapshot.putAll(unpublished);
+        }
+
+        writeSnapshot(snapshot);
+        Files.deleteIfExists(sealedLogFile);
+    }
+
+    private void writeSnapshot(Map<String, String> snapshot) throws IOException {
+        Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        byte[] json = gson.toJson(snapshot).getBytes(StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(json);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (FSYNC) {
+                channel.force(false);
+            }
+        }
+        Files.move(temp, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void close() throws IOException {
+        checkpointer.shutdownNow();
+        checkpoint();
+        synchronized (appendLock) {
+            log.close();
+        }
+    }
+}
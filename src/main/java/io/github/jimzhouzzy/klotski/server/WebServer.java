@@ -1,116 +1,178 @@
 package io.github.jimzhouzzy.klotski.server;
 
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpExchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.nio.file.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.concurrent.ExecutorService;
 
 public class WebServer {
+    private static final Logger logger = LoggerFactory.getLogger(WebServer.class);
+    private static final long MAX_AGE_SECONDS = Long.getLong("klotski.web.maxAgeSeconds", 3600);
+
     private final HttpServer server;
+    private final ExecutorService executor;
+    private final AssetCache assets;
+    private final MappedFileCache largeFiles = new MappedFileCache();
 
     public WebServer(int port) throws IOException {
-        // Ensure the "web" folder exists
-        ensureWebFolder();
+        // Load the web files into memory
+        assets = AssetCache.load();
 
         server = HttpServer.create(new InetSocketAddress("0.0.0.0", port), 0);
 
         // Serve static files from the "web" directory
-        server.createContext("/", this::handleRequest);
+        HttpContext context = server.createContext("/", this::handleRequest);
+        context.getFilters().add(new Metrics.HttpFilter("web", "/"));
+        context.getFilters().add(new RateLimiter.HttpFilter(RateLimiter.WEB));
+        context.getFilters().add(new HttpExecutors.AdmissionFilter(HttpExecutors.MAX_IN_FLIGHT));
+        executor = HttpExecutors.install(server, "web-http");
 
         server.start();
-        System.out.println("HTTP server started on http://0.0.0.0:" + port);
+        logger.info("HTTP server started on http://0.0.0.0:{}", port);
     }
 
-    private void ensureWebFolder() throws IOException {
-        File webDir = new File("web");
-        if (!webDir.exists()) {
-            System.out.println("Web directory not found. Extracting from JAR...");
-            extractWebFolderFromJar();
-        } else {
-            System.out.println("Web directory already exists.");
+    void handleRequest(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            exchange.sendResponseHeaders(405, -1); // Method not allowed
+            exchange.close();
+            return;
         }
-    }
 
-    private void extractWebFolderFromJar() throws IOException {
-        try (InputStream jarStream = getClass().getProtectionDomain().getCodeSource().getLocation().openStream();
-             ZipInputStream zipInputStream = new ZipInputStream(jarStream)) {
-
-            ZipEntry entry;
-            while ((entry = zipInputStream.getNextEntry()) != null) {
-                String entryName = entry.getName();
-                if (entryName.startsWith("web/")) {
-                    File file = new File(entryName);
-                    if (entry.isDirectory()) {
-                        file.mkdirs();
-                    } else {
-                        file.getParentFile().mkdirs();
-                        try (OutputStream outputStream = new FileOutputStream(file)) {
-                            byte[] buffer = new byte[1024];
-                            int bytesRead;
-                            while ((bytesRead = zipInputStream.read(buffer)) != -1) {
-                                outputStream.write(buffer, 0, bytesRead);
-                            }
-                        }
-                    }
-                }
+        String uriPath = exchange.getRequestURI().getPath();
+        if (uriPath.equals("/")) {
+            uriPath = "/index.html"; // Default to index.html
+        }
+
+        AssetCache.Asset asset = assets.get(uriPath);
+        if (asset == null) {
+            Path largeFile = assets.largeFile(uriPath);
+            if (largeFile != null) {
+                serveFile(exchange, largeFile, AssetCache.contentTypeOf(uriPath));
+                return;
+            }
+            // Any other path without a file extension is a user to spectate, e.g. /jim
+            if (!uriPath.substring(uriPath.lastIndexOf('/') + 1).contains(".")) {
+                asset = assets.get("/index.html");
             }
         }
-    }
 
-    private void handleRequest(HttpExchange exchange) throws IOException {
-        String uriPath = exchange.getRequestURI().getPath();
-        String username = null;
-
-        // Check if the path is for a specific user
-        if (uriPath.startsWith("/") && !uriPath.equals("/")) {
-            username = uriPath.substring(1); // Extract username from URI
-            if (!username.isEmpty()) {
-                System.out.println("Serving content for user: " + username);
-                uriPath = "/index.html"; // Default to index.html
+        if (asset == null) {
+            String errorMessage = "404 - File Not Found";
+            exchange.sendResponseHeaders(404, errorMessage.length());
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(errorMessage.getBytes());
             }
+            return;
         }
+        serveAsset(exchange, asset);
+    }
 
-        if (uriPath.equals("/")) {
-            uriPath = "/index.html"; // Default to index.html
+    private void serveAsset(HttpExchange exchange, AssetCache.Asset asset) throws IOException {
+        String encoding = asset.negotiate(exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+        String etag = asset.getEtag(encoding);
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Content-Type", asset.getContentType());
+        headers.set("ETag", etag);
+        headers.set("Vary", "Accept-Encoding");
+        // The page must pick up a new deployment; everything else can be reused for a while
+        headers.set("Cache-Control", asset.getContentType().startsWith("text/html")
+                ? "no-cache" : "public, max-age=" + MAX_AGE_SECONDS);
+        if (encoding != null) {
+            headers.set("Content-Encoding", encoding);
         }
 
-        String filePath = "web" + uriPath; // Map URI to file path
-        File file = new File(filePath);
+        if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
 
-        System.out.println("Requested file path: " + filePath);
+        byte[] body = asset.getBytes(encoding);
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            headers.set("Content-Length", String.valueOf(body.length));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
 
-        if (file.exists() && !file.isDirectory()) {
-            String contentType = Files.probeContentType(Paths.get(filePath));
-            if (contentType == null) {
-                contentType = "application/octet-stream"; // Default content type
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) {
+                return true;
             }
+        }
+        return false;
+    }
 
-            exchange.getResponseHeaders().set("Content-Type", contentType);
-            exchange.sendResponseHeaders(200, file.length());
+    private void serveFile(HttpExchange exchange, Path path, String contentType) throws IOException {
+        MappedFileCache.MappedFile file = largeFiles.get(path);
+        Headers headers = exchange.getResponseHeaders();
+        String etag = file.getEtag();
+        headers.set("Content-Type", contentType);
+        headers.set("ETag", etag);
+        headers.set("Accept-Ranges", "bytes");
+        headers.set("Cache-Control", "public, max-age=" + MAX_AGE_SECONDS);
+
+        if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
 
-            try (OutputStream os = exchange.getResponseBody();
-                 FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[1024];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    os.write(buffer, 0, bytesRead);
-                }
-            }
-        } else {
-            String errorMessage = "404 - File Not Found";
-            exchange.sendResponseHeaders(404, errorMessage.length());
-            try (OutputStream os = exchange.getResponseBody()) {
-                os.write(errorMessage.getBytes());
-            }
+        // A range only applies to the version of the file the client already has part of
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        MappedFileCache.Range range = ifRange == null || ifRange.equals(etag)
+                ? MappedFileCache.parseRange(exchange.getRequestHeaders().getFirst("Range"), file.getSize())
+                : null;
+        if (range == MappedFileCache.UNSATISFIABLE) {
+            headers.set("Content-Range", "bytes */" + file.getSize());
+            exchange.sendResponseHeaders(416, -1);
+            exchange.close();
+            return;
+        }
+
+        int status = 200;
+        long offset = 0;
+        long length = file.getSize();
+        if (range != null) {
+            status = 206;
+            offset = range.getStart();
+            length = range.getLength();
+            headers.set("Content-Range", "bytes " + range.getStart() + "-" + range.getEnd() + "/" + file.getSize());
+        }
+
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            headers.set("Content-Length", String.valueOf(length));
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        exchange.sendResponseHeaders(status, length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            file.writeTo(os, offset, length);
         }
     }
 
     public void close() {
         server.stop(0);
+        HttpExecutors.shutdown(executor);
     }
 
     public static void main(String[] args) {
@@ -119,7 +181,7 @@ public class WebServer {
             int port = 8013;
             new WebServer(port);  // Create an instance of WebServer to start the server
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.error("Failed to start web server", e);
         }
     }
 }
\ No newline at end of file